@@ -0,0 +1,336 @@
+package com.kcl.osc.imageprocessor;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * The filtered version of an image, computed one horizontal band at a time
+ * as an image encoder asks for its rows (ImageIO's PNG writer asks for one row at a time,
+ * from top to bottom).
+ *
+ * Only one band of the input, with the rows of its halo (the kernel's radius above and below),
+ * and one band of the output are held in memory, so the memory used is
+ * O(width x band height) however tall the image is.
+ * The rows must be asked for from top to bottom.
+ *
+ * The window is extended beyond the edges of the image with the BorderMode.
+ * WRAP is not supported, as it would need the first rows of the image at the end of it.
+ */
+public class BandedFilteredImage implements RenderedImage {
+
+    private static final DirectColorModel COLOR_MODEL = (DirectColorModel) ColorModel.getRGBdefault();
+
+    private final RowReader reader;
+    private final Kernel kernel;
+    private final FilterChain chain;
+    private final BorderMode mode;
+    private final int width;
+    private final int height;
+    private final int bandHeight;
+    private final int radiusX;
+    private final int radiusY;
+
+    // the input band with its halo and a border on each side: image rows
+    // [bandStart - radiusY, bandEnd + radiusY), columns [-radiusX, width + radiusX)
+    private final int[] window;
+    private final int windowWidth;
+
+    private final int[] output;
+
+    // the rows of the band currently in output, bandStart == bandEnd before the first band
+    private int bandStart;
+    private int bandEnd;
+    private Raster band;
+
+    /**
+     * Constructor.
+     * @param reader Decodes the image to filter
+     * @param kernel The filter, or null for the greyscale filter
+     * @param bandHeight The number of rows filtered at a time
+     */
+    public BandedFilteredImage(RowReader reader, Kernel kernel, int bandHeight) {
+        this(reader, kernel, BorderMode.CONSTANT, bandHeight);
+    }
+
+    /**
+     * Constructor for a kernel with a given border mode.
+     * @param reader Decodes the image to filter
+     * @param kernel The filter, or null for the greyscale filter
+     * @param mode What the kernel sees beyond the edges of the image (not WRAP)
+     * @param bandHeight The number of rows filtered at a time
+     */
+    public BandedFilteredImage(RowReader reader, Kernel kernel, BorderMode mode, int bandHeight) {
+        this(reader, kernel, null, mode, bandHeight);
+    }
+
+    /**
+     * Constructor for a chain of filters, whose halo is the sum of the radii of its steps.
+     * @param reader Decodes the image to filter
+     * @param chain The filters
+     * @param mode What each step sees beyond the edges of the image (not WRAP, see FilterChain)
+     * @param bandHeight The number of rows filtered at a time
+     */
+    public BandedFilteredImage(RowReader reader, FilterChain chain, BorderMode mode, int bandHeight) {
+        this(reader, null, chain, mode, bandHeight);
+    }
+
+    private BandedFilteredImage(RowReader reader, Kernel kernel, FilterChain chain, BorderMode mode, int bandHeight) {
+        if (mode == BorderMode.WRAP) {
+            throw new IllegalArgumentException("A streamed image cannot have a WRAP border");
+        }
+        this.reader = reader;
+        this.kernel = kernel;
+        this.chain = chain;
+        this.mode = mode;
+        this.width = reader.getWidth();
+        this.height = reader.getHeight();
+        this.bandHeight = Math.max(1, Math.min(bandHeight, height));
+        if (chain != null) {
+            this.radiusX = chain.getRadiusX();
+            this.radiusY = chain.getRadiusY();
+        } else {
+            this.radiusX = kernel == null ? 0 : kernel.getRadiusX();
+            this.radiusY = kernel == null ? 0 : kernel.getRadiusY();
+        }
+
+        windowWidth = width + 2 * radiusX;
+        window = new int[windowWidth * (this.bandHeight + 2 * radiusY)];
+        output = new int[width * this.bandHeight];
+        bandStart = 0;
+        bandEnd = 0;
+    }
+
+    /**
+     * Filters the band of rows starting where the previous band ended.
+     * The halo rows shared with the previous band are moved up rather than decoded again.
+     */
+    private void nextBand() throws IOException {
+        int start = bandEnd;
+        int end = Math.min(height, start + bandHeight);
+        int rows = end - start;
+
+        // window rows [0, kept) are already known: the last rows of the previous window
+        int kept = 0;
+        if (start > 0) {
+            kept = 2 * radiusY;
+            int previousRows = (bandEnd - bandStart) + 2 * radiusY;
+            System.arraycopy(window, (previousRows - kept) * windowWidth, window, 0, kept * windowWidth);
+        }
+
+        int windowRows = rows + 2 * radiusY;
+        Arrays.fill(window, kept * windowWidth, windowRows * windowWidth, BorderMode.BORDER_COLOUR);
+        for (int r = kept; r < windowRows; ) {
+            int imageRow = start - radiusY + r;
+            if (imageRow < 0) {
+                r++;
+            } else if (imageRow >= height) {
+                break;
+            } else {
+                int count = Math.min(windowRows, height - start + radiusY) - r;
+                reader.readRows(count, window, r * windowWidth + radiusX, windowWidth);
+                r += count;
+            }
+        }
+        if (mode != BorderMode.CONSTANT && chain == null) {
+            // A ChainWorker extends each step itself
+            extendBorder(start, kept, windowRows);
+        }
+
+        PixelBuffer input = new PixelBuffer(windowWidth, windowRows, window);
+        PixelBuffer result = new PixelBuffer(width, rows, output);
+        if (chain != null) {
+            // The window's row 0 is the image's row start - radiusY
+            TileScheduler.run(start, end, width, (s, e) -> new ChainWorker(chain, mode, input, start - radiusY,
+                    radiusX, height, s, e, result, start));
+        } else if (kernel == null) {
+            TileScheduler.run(0, rows, width, (s, e) -> GreyscaleWorker.create(input, s, e, result));
+        } else {
+            TileScheduler.run(radiusY, radiusY + rows, windowWidth, ParallelismBudget.threadsPerImage(),
+                    kernel.getBlockRows(input), (s, e) -> kernel.createWorker(input, s, e, result));
+        }
+
+        bandStart = start;
+        bandEnd = end;
+        band = Raster.createPackedRaster(new DataBufferInt(output, width * rows), width, rows, width,
+                COLOR_MODEL.getMasks(), new Point(0, start));
+    }
+
+    /**
+     * Fills the border columns, and the rows outside the image, of the new rows of the window
+     * with the pixels of the image the border mode maps them to. The rows mapped to are
+     * always in the window: within the kernel's radius of the edge of the image.
+     * @param start The first row of the band
+     * @param kept The first new row of the window
+     * @param windowRows The number of rows of the window
+     */
+    private void extendBorder(int start, int kept, int windowRows) {
+        int top = start - radiusY;
+        for (int r = kept; r < windowRows; r++) {
+            int imageRow = top + r;
+            if (imageRow >= 0 && imageRow < height) {
+                int rowStart = r * windowWidth;
+                for (int c = 0; c < radiusX; c++) {
+                    window[rowStart + c] = window[rowStart + radiusX + mode.map(c - radiusX, width)];
+                    window[rowStart + radiusX + width + c] = window[rowStart + radiusX + mode.map(width + c, width)];
+                }
+            }
+        }
+        for (int r = kept; r < windowRows; r++) {
+            int imageRow = top + r;
+            if (imageRow < 0 || imageRow >= height) {
+                System.arraycopy(window, (mode.map(imageRow, height) - top) * windowWidth, window, r * windowWidth, windowWidth);
+            }
+        }
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+        if (rect.y < bandStart) {
+            throw new IllegalStateException("The rows of a BandedFilteredImage must be read from top to bottom");
+        }
+        if (rect.y + rect.height > height) {
+            throw new IllegalArgumentException("Rows " + rect.y + " to " + (rect.y + rect.height) + " are outside the image");
+        }
+        try {
+            while (rect.y >= bandEnd) {
+                nextBand();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (rect.y + rect.height <= bandEnd) {
+            return band.createChild(rect.x, rect.y, rect.width, rect.height, rect.x, rect.y, null);
+        }
+
+        // The rectangle spans several bands
+        WritableRaster raster = band.createCompatibleWritableRaster(rect);
+        copyData(raster);
+        return raster;
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+        if (raster == null) {
+            raster = Raster.createPackedRaster(DataBuffer.TYPE_INT, width, height, COLOR_MODEL.getMasks(), null);
+        }
+        Rectangle bounds = raster.getBounds();
+        int bottom = bounds.y + bounds.height;
+        for (int y = bounds.y; y < bottom; ) {
+            // Moves on to the band containing row y
+            getData(new Rectangle(bounds.x, y, bounds.width, 1));
+            int count = Math.min(bandEnd, bottom) - y;
+            raster.setRect(band.createChild(bounds.x, y, bounds.width, count, bounds.x, y, null));
+            y += count;
+        }
+        return raster;
+    }
+
+    @Override
+    public Raster getData() {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        return getData(new Rectangle(0, tileY * bandHeight, width, Math.min(bandHeight, height - tileY * bandHeight)));
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return COLOR_MODEL;
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, bandHeight, COLOR_MODEL.getMasks());
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getMinX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinY() {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles() {
+        return 1;
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return (height + bandHeight - 1) / bandHeight;
+    }
+
+    @Override
+    public int getMinTileX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY() {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return width;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return bandHeight;
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return 0;
+    }
+}
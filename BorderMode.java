@@ -0,0 +1,68 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * What a kernel sees beyond the edges of the image.
+ * The mode is chosen with the system property imageprocessor.border (CONSTANT by default).
+ */
+public enum BorderMode {
+
+    /**
+     * A grey border (0.5, 0.5, 0.5), as if the image were framed in grey.
+     */
+    CONSTANT,
+
+    /**
+     * The pixels of the edge repeated: aaa|abcd|ddd.
+     */
+    CLAMP,
+
+    /**
+     * The image reflected about its edge pixels: dcb|abcd|cba.
+     */
+    MIRROR,
+
+    /**
+     * The image repeated, as if it were a tile: bcd|abcd|abc.
+     */
+    WRAP;
+
+    /**
+     * The colour of a CONSTANT border.
+     */
+    public static final int BORDER_COLOUR = PixelBuffer.pack(128, 128, 128);
+
+    /**
+     * Finds the pixel of the image a coordinate beyond its edges stands for.
+     * @param i The coordinate (column or row), possibly outside the image
+     * @param size The width or height of the image
+     * @return The coordinate inside the image, or -1 for the CONSTANT border colour
+     */
+    public int map(int i, int size) {
+        if (i >= 0 && i < size) {
+            return i;
+        }
+        switch (this) {
+            case CLAMP:
+                return i < 0 ? 0 : size - 1;
+            case MIRROR: {
+                if (size == 1) {
+                    return 0;
+                }
+                int period = 2 * (size - 1);
+                int m = Math.floorMod(i, period);
+                return m < size ? m : period - m;
+            }
+            case WRAP:
+                return Math.floorMod(i, size);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return The mode named by the system property imageprocessor.border, CONSTANT if it is not set
+     */
+    public static BorderMode fromSystemProperty() {
+        return valueOf(System.getProperty("imageprocessor.border", "CONSTANT").toUpperCase());
+    }
+}
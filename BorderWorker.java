@@ -0,0 +1,112 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.Arrays;
+
+/**
+ * Applies a kernel to an image that has no border around it, handling the edges in place.
+ *
+ * The pixels whose whole neighbourhood is inside the image are filtered straight from
+ * the image by the kernel's own worker (see Kernel.createWorker), with no check on any
+ * coordinate. The pixels near the edges are filtered from small strips of the image
+ * extended with the BorderMode (the top and bottom radiusY rows, and the left and right
+ * radiusX columns), by the same worker, so they are computed with the same arithmetic.
+ * A strip is O(radius x image side), so no padded copy of the image is ever made.
+ */
+public class BorderWorker extends Worker {
+
+    private final Kernel kernel;
+    private final BorderMode mode;
+
+    /**
+     * Constructor.
+     * @param kernel The kernel to apply
+     * @param mode What the kernel sees beyond the edges of the image
+     * @param baseImage The original image, without any border
+     * @param start The row of the image to start filtering from (inclusive)
+     * @param end The row of the image to end filtering (exclusive)
+     * @param result The result image, the size of the original image
+     */
+    public BorderWorker(Kernel kernel, BorderMode mode, PixelBuffer baseImage, int start, int end, PixelBuffer result) {
+        super(baseImage, start, end, result);
+        this.kernel = kernel;
+        this.mode = mode;
+    }
+
+    /**
+     * Applies the kernel to the rows from startRow (inclusive) to endRow (exclusive).
+     * Modifies the filteredImage.
+     */
+    @Override
+    public void run() {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int radiusX = kernel.getRadiusX();
+        int radiusY = kernel.getRadiusY();
+
+        // The rows of this slice whose neighbourhood does not cross the top or bottom edge
+        int interiorStart = Math.max(startRow, radiusY);
+        int interiorEnd = Math.min(endRow, height - radiusY);
+        if (width <= 2 * radiusX || interiorStart >= interiorEnd) {
+            // Too small to have an interior: all of it is near an edge
+            filterStrip(startRow, endRow, 0, width);
+            return;
+        }
+
+        kernel.createWorker(image, interiorStart, interiorEnd, filteredImage)
+                .setResultPosition(radiusY * width + radiusX, width).run();
+        if (radiusX > 0) {
+            filterStrip(interiorStart, interiorEnd, 0, radiusX);
+            filterStrip(interiorStart, interiorEnd, width - radiusX, width);
+        }
+        if (startRow < interiorStart) {
+            filterStrip(startRow, interiorStart, 0, width);
+        }
+        if (interiorEnd < endRow) {
+            filterStrip(interiorEnd, endRow, 0, width);
+        }
+    }
+
+    /**
+     * Filters a rectangle of the image from a strip of the image extended with the border mode.
+     * @param top The first row of the rectangle
+     * @param bottom The row after the rectangle
+     * @param left The first column of the rectangle
+     * @param right The column after the rectangle
+     */
+    private void filterStrip(int top, int bottom, int left, int right) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int radiusX = kernel.getRadiusX();
+        int radiusY = kernel.getRadiusY();
+        int stripWidth = (right - left) + 2 * radiusX;
+        int stripHeight = (bottom - top) + 2 * radiusY;
+
+        PixelBuffer strip = PixelBufferPool.borrow(stripWidth, stripHeight);
+        int[] in = image.getPixels();
+        int[] pixels = strip.getPixels();
+        // The columns of the strip inside the image, copied in one go
+        int firstInside = Math.max(0, radiusX - left);
+        int lastInside = Math.min(stripWidth, width - left + radiusX);
+        for (int r = 0; r < stripHeight; r++) {
+            int y = mode.map(top - radiusY + r, height);
+            int rowStart = r * stripWidth;
+            if (y < 0) {
+                Arrays.fill(pixels, rowStart, rowStart + stripWidth, BorderMode.BORDER_COLOUR);
+                continue;
+            }
+            for (int c = 0; c < stripWidth; c++) {
+                if (c == firstInside && firstInside < lastInside) {
+                    System.arraycopy(in, y * width + left - radiusX + c, pixels, rowStart + c, lastInside - firstInside);
+                    c = lastInside - 1;
+                    continue;
+                }
+                int x = mode.map(left - radiusX + c, width);
+                pixels[rowStart + c] = x < 0 ? BorderMode.BORDER_COLOUR : in[y * width + x];
+            }
+        }
+
+        kernel.createWorker(strip, radiusY, radiusY + (bottom - top), filteredImage)
+                .setResultPosition(top * width + left, width).run();
+        PixelBufferPool.release(strip);
+    }
+}
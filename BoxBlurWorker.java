@@ -0,0 +1,183 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.Arrays;
+
+/**
+ * Applies a box blur, or a cascade of box blurs (see Kernel.gaussian), with running sums:
+ * moving a box by one pixel adds the pixel entering it and subtracts the pixel leaving it,
+ * so each box costs the same per pixel whatever its radius.
+ *
+ * Each box is applied as a horizontal pass followed by a vertical pass. The vertical passes
+ * only keep the rows their boxes cover, so the memory used does not depend on the number of rows.
+ * The sums are not divided by the size of the boxes until the end: they are whole numbers,
+ * exact in a double up to 2^53, so the result is the exact mean rounded to the nearest integer
+ * (for all but cascades of very large boxes, which are then within rounding of it).
+ */
+public class BoxBlurWorker extends Worker {
+
+    /**
+     * The blocks an image is split into (see blockRows()) are at least this many times
+     * the rows the horizontal passes of a block add around it, so that they redo little work.
+     */
+    private static final int MIN_BLOCK_HALOS = 4;
+
+    private final int[] radii;
+
+    // the sum of the radii
+    private final int radius;
+
+    /**
+     * Constructor.
+     * @param baseImage The original image, with a border of the sum of the radii
+     * @param start The row of the bordered image to start filtering from (inclusive)
+     * @param end The row of the bordered image to end filtering (exclusive)
+     * @param result The result image
+     * @param radii The radius of each box, applied one after the other
+     */
+    public BoxBlurWorker(PixelBuffer baseImage, int start, int end, PixelBuffer result, int[] radii) {
+        super(baseImage, start, end, result);
+        this.radii = radii;
+        int sum = 0;
+        for (int r : radii) {
+            sum += r;
+        }
+        this.radius = sum;
+    }
+
+    /**
+     * Returns the number of rows the blocks of an image should be a multiple of: the horizontal
+     * passes of each block also cover the sum of the radii above and below it, so the blocks
+     * must be large compared to that for the rows done twice to be a small part of the work.
+     * @param radii The radius of each box
+     * @return The number of rows
+     */
+    public static int blockRows(int[] radii) {
+        int radius = 0;
+        for (int r : radii) {
+            radius += r;
+        }
+        return Math.max(1, MIN_BLOCK_HALOS * 2 * radius);
+    }
+
+    /**
+     * Applies the boxes to a part of an image,
+     * from the startRow (inclusive) to the endRow (exclusive).
+     * The image is read a row at a time, from the sum of the radii above the part to as far below it:
+     * each channel of a row goes through the horizontal passes, then through the vertical passes,
+     * which keep the last 2 * radius + 1 rows they were given in a ring, and their sums.
+     * The rings and the sums are borrowed from the PixelBufferPool.
+     * Modifies the filteredImage.
+     */
+    @Override
+    public void run() {
+        int inWidth = image.getWidth();
+        // the rows of all the rings of a channel
+        int ringRows = 0;
+        for (int r : radii) {
+            ringRows += 2 * r + 1;
+        }
+        // the number of pixels filtered in a row
+        int outWidth = inWidth - 2 * radius;
+
+        // The arrays are borrowed, so may be longer than needed
+        double[] line = PixelBufferPool.borrowDoubles(inWidth);
+        double[] rings = PixelBufferPool.borrowDoubles(3L * ringRows * outWidth);
+        double[] sums = PixelBufferPool.borrowDoubles(3L * radii.length * outWidth);
+        try {
+            Arrays.fill(sums, 0, 3 * radii.length * outWidth, 0);
+            int rows = endRow - startRow + 2 * radius;
+            for (int r = 0; r < rows; r++) {
+                for (int channel = 0; channel < 3; channel++) {
+                    filterRow(startRow - radius + r, r, channel, line, rings, sums, ringRows, outWidth);
+                }
+            }
+        } finally {
+            PixelBufferPool.release(line);
+            PixelBufferPool.release(rings);
+            PixelBufferPool.release(sums);
+        }
+    }
+
+    /**
+     * Takes one channel of a row of the image through the horizontal passes, then through the
+     * vertical passes, and writes the row of the result they complete, if any.
+     * @param imageRow The row of the image
+     * @param index The number of rows read before it
+     * @param channel 0 for red, 1 for green, 2 for blue
+     * @param line Room for a row of the image
+     * @param rings The rings of the vertical passes of each channel
+     * @param sums The sums of the rings of each channel
+     * @param ringRows The rows of the rings of a channel
+     * @param outWidth The number of pixels filtered in a row
+     */
+    private void filterRow(int imageRow, int index, int channel, double[] line, double[] rings, double[] sums,
+            int ringRows, int outWidth) {
+        int[] in = image.getPixels();
+        int inWidth = image.getWidth();
+        int shift = 16 - 8 * channel;
+        int inOffset = imageRow * inWidth;
+        for (int j = 0; j < inWidth; j++) {
+            line[j] = (in[inOffset + j] >> shift) & 0xFF;
+        }
+        int width = inWidth;
+        for (int boxRadius : radii) {
+            sumRow(line, width, boxRadius);
+            width -= 2 * boxRadius;
+        }
+
+        // Each pass gives the next one the sum of its ring once the ring is full
+        double[] values = line;
+        int valuesOffset = 0;
+        int ring = channel * ringRows * outWidth;
+        double size = 1;
+        for (int k = 0; k < radii.length; k++) {
+            int ringSize = 2 * radii[k] + 1;
+            int slot = ring + (index % ringSize) * outWidth;
+            int sum = (channel * radii.length + k) * outWidth;
+            boolean full = index >= ringSize;
+            for (int j = 0; j < outWidth; j++) {
+                double value = values[valuesOffset + j];
+                // The row leaving the box is the one in the slot, replaced by the row entering it
+                sums[sum + j] += full ? value - rings[slot + j] : value;
+                rings[slot + j] = value;
+            }
+            if (index < ringSize - 1) {
+                return;
+            }
+            values = sums;
+            valuesOffset = sum;
+            index -= ringSize - 1;
+            ring += ringSize * outWidth;
+            size *= ringSize * ringSize;
+        }
+
+        // index is now the number of rows of the result before this one
+        int[] out = filteredImage.getPixels();
+        int outOffset = resultOffset + (startRow + index - radius) * resultStride;
+        for (int j = 0; j < outWidth; j++) {
+            int value = clampRGB(values[valuesOffset + j] / size) << shift;
+            out[outOffset + j] = channel == 0 ? 0xFF000000 | value : out[outOffset + j] | value;
+        }
+    }
+
+    /**
+     * Replaces the first width - 2 * radius values of a row by the sums of the boxes
+     * of 2 * radius + 1 values starting at them.
+     * @param values The row
+     * @param width The number of values in the row
+     * @param radius The radius of the box
+     */
+    private static void sumRow(double[] values, int width, int radius) {
+        int last = 2 * radius;
+        double sum = 0;
+        for (int j = 0; j < last; j++) {
+            sum += values[j];
+        }
+        for (int j = 0; j < width - last; j++) {
+            sum += values[j + last];
+            double first = values[j];
+            values[j] = sum;
+            sum -= first;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Applies a FilterChain to a part of an image, one band of rows at a time.
+ *
+ * A band goes through every step of the chain before the next band is started:
+ * the input of each step is the output of the previous one for the same band,
+ * extended beyond the edges of the image with the BorderMode, as if each step
+ * filtered the whole image. So that the last step has all the rows it needs, each step
+ * computes the rows of its band plus the radii of the steps after it on each side.
+ *
+ * With a WRAP border, the rows a step computes beyond the edges of the image are
+ * already those of the image repeated, as its input is repeated too, so they are kept.
+ * With the other modes, they are replaced by the rows the mode maps them to, which
+ * are within the radius of the edge, so in the band.
+ */
+public class ChainWorker extends Worker {
+
+    /**
+     * The number of pixels in a band, so that its buffers stay in the cache.
+     * The band height is this divided by the width.
+     */
+    private static final int BAND_PIXELS = 64 * 1024;
+
+    /**
+     * Bands are at least this many times the chain's halo, so that the rows
+     * recomputed at band borders are a small part of the work.
+     */
+    private static final int MIN_BAND_HALOS = 8;
+
+    private final FilterChain chain;
+
+    // what each step sees beyond the edges of the image
+    private final BorderMode mode;
+
+    // where the image's row 0 and column 0 are in the base image
+    private final int sourceTop;
+    private final int sourceLeft;
+
+    private final int imageHeight;
+
+    // the row of the image the result's row 0 holds
+    private final int resultTop;
+
+    /**
+     * Constructor.
+     * @param chain The filters to apply
+     * @param mode What each step sees beyond the edges of the image
+     * @param baseImage The original image, holding at least the rows from start - chain.getRadiusY()
+     *                  to end + chain.getRadiusY() that are inside the image, and those
+     *                  the border mode maps the others to
+     * @param sourceTop The row of the image at row 0 of the base image (negative if the base image
+     *                  starts with rows above the image)
+     * @param sourceLeft The column of the base image holding column 0 of the image
+     * @param imageHeight The height of the image
+     * @param start The row of the image to start filtering from (inclusive)
+     * @param end The row of the image to end filtering (exclusive)
+     * @param result The result image, as wide as the image
+     * @param resultTop The row of the image at row 0 of the result
+     */
+    public ChainWorker(FilterChain chain, BorderMode mode, PixelBuffer baseImage, int sourceTop, int sourceLeft,
+            int imageHeight, int start, int end, PixelBuffer result, int resultTop) {
+        super(baseImage, start, end, result);
+        this.chain = chain;
+        this.mode = mode;
+        this.sourceTop = sourceTop;
+        this.sourceLeft = sourceLeft;
+        this.imageHeight = imageHeight;
+        this.resultTop = resultTop;
+    }
+
+    /**
+     * Applies the chain to the rows from startRow (inclusive) to endRow (exclusive).
+     * Modifies the filteredImage.
+     */
+    @Override
+    public void run() {
+        int width = filteredImage.getWidth();
+        int halo = chain.getRadiusY();
+        int bandRows = Math.max(MIN_BAND_HALOS * Math.max(1, halo), BAND_PIXELS / Math.max(1, width));
+        bandRows = Math.max(1, Math.min(bandRows, endRow - startRow));
+
+        // The input of a step (with its border) and the output of a step
+        int maxRows = bandRows + 2 * halo;
+        PixelBuffer input = PixelBufferPool.borrow(width + 2 * chain.getRadiusX(), maxRows);
+        PixelBuffer output = PixelBufferPool.borrow(width, maxRows);
+        try {
+            for (int band = startRow; band < endRow; band += bandRows) {
+                filterBand(band, Math.min(endRow, band + bandRows), input.getPixels(), output.getPixels());
+            }
+        } finally {
+            PixelBufferPool.release(input);
+            PixelBufferPool.release(output);
+        }
+    }
+
+    /**
+     * Applies every step of the chain to a band of rows.
+     * @param start The first row of the band
+     * @param end The row after the band
+     * @param inArray Room for the input of a step
+     * @param outArray Room for the output of a step
+     */
+    private void filterBand(int start, int end, int[] inArray, int[] outArray) {
+        int width = filteredImage.getWidth();
+        List<Kernel> steps = chain.getSteps();
+
+        // The rows of the image the first step needs, with its own halo
+        int top = start - chain.getRadiusY();
+        int rows = (end - start) + 2 * chain.getRadiusY();
+        Kernel first = steps.get(0);
+        int radiusX = first == null ? 0 : first.getRadiusX();
+        int[] source = image.getPixels();
+        for (int r = 0; r < rows; r++) {
+            int y = mode.map(top + r, imageHeight);
+            copyRow(source, y < 0 ? -1 : (y - sourceTop) * image.getWidth() + sourceLeft, inArray, r, width, radiusX);
+        }
+
+        for (int s = 0; s < steps.size(); s++) {
+            Kernel kernel = steps.get(s);
+            int radiusY = kernel == null ? 0 : kernel.getRadiusY();
+            int outRows = rows - 2 * radiusY;
+
+            PixelBuffer in = new PixelBuffer(width + 2 * radiusX, rows, inArray);
+            PixelBuffer out = new PixelBuffer(width, outRows, outArray);
+            Worker worker = kernel == null
+                    ? GreyscaleWorker.create(in, 0, rows, out)
+                    : kernel.createWorker(in, radiusY, rows - radiusY, out);
+            worker.run();
+
+            top += radiusY;
+            rows = outRows;
+            if (s == steps.size() - 1) {
+                break;
+            }
+
+            // The output of this step, with the border of the next one, is the input of the next one
+            Kernel next = steps.get(s + 1);
+            radiusX = next == null ? 0 : next.getRadiusX();
+            for (int r = 0; r < rows; r++) {
+                int from = r * width;
+                if (mode != BorderMode.WRAP) {
+                    int y = mode.map(top + r, imageHeight);
+                    from = y < 0 ? -1 : (y - top) * width;
+                }
+                copyRow(outArray, from, inArray, r, width, radiusX);
+            }
+        }
+
+        // rows == end - start now
+        System.arraycopy(outArray, 0, filteredImage.getPixels(), (start - resultTop) * width, rows * width);
+    }
+
+    /**
+     * Copies a row into a row of a bordered buffer, extending it into the border with the border mode.
+     * @param from The index of the row in the source, -1 for a row of the CONSTANT border (all grey)
+     * @param row The row of the bordered buffer
+     * @param border The width of the border on each side
+     */
+    private void copyRow(int[] source, int from, int[] bordered, int row, int width, int border) {
+        int rowStart = row * (width + 2 * border);
+        if (from < 0) {
+            Arrays.fill(bordered, rowStart, rowStart + width + 2 * border, BorderMode.BORDER_COLOUR);
+            return;
+        }
+        System.arraycopy(source, from, bordered, rowStart + border, width);
+        if (mode == BorderMode.CONSTANT) {
+            Arrays.fill(bordered, rowStart, rowStart + border, BorderMode.BORDER_COLOUR);
+            Arrays.fill(bordered, rowStart + border + width, rowStart + width + 2 * border, BorderMode.BORDER_COLOUR);
+            return;
+        }
+        for (int c = 0; c < border; c++) {
+            bordered[rowStart + c] = source[from + mode.map(c - border, width)];
+            bordered[rowStart + border + width + c] = source[from + mode.map(width + c, width)];
+        }
+    }
+}
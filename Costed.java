@@ -0,0 +1,49 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * A task that can tell how expensive it is before it runs,
+ * so that a TaskPool can schedule it (see SchedulingPolicy).
+ */
+public interface Costed {
+
+    /**
+     * @return The estimated cost of the task, in arbitrary units comparable between tasks
+     */
+    long getCost();
+
+    /**
+     * @return The priority class of the task: tasks of a higher class run first under the
+     * PRIORITY policy. 0 by default
+     */
+    default int getPriority() {
+        return 0;
+    }
+
+    /**
+     * Estimates the cost of filtering an image: decoding and encoding cost about the same
+     * per pixel whatever the filter, and convolution costs its taps per pixel (see Kernel.getTaps()).
+     * @param pixels The number of pixels of the image
+     * @param kernel The kernel of the filter, null for the greyscale filter
+     * @return The cost
+     */
+    static long estimate(long pixels, Kernel kernel) {
+        int taps = kernel == null ? 1 : kernel.getTaps();
+        return pixels * (CODEC_COST_PER_PIXEL + taps);
+    }
+
+    /**
+     * Estimates the cost of filtering an image with a chain of filters, which costs
+     * the taps of all its steps per pixel.
+     * @param pixels The number of pixels of the image
+     * @param chain The filters, null if the chain is not valid
+     * @return The cost
+     */
+    static long estimate(long pixels, FilterChain chain) {
+        return pixels * (CODEC_COST_PER_PIXEL + (chain == null ? 1 : chain.getTaps()));
+    }
+
+    /**
+     * The cost of decoding and encoding a pixel, in multiply-adds.
+     */
+    int CODEC_COST_PER_PIXEL = 16;
+}
@@ -0,0 +1,94 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * A fast Fourier transform of a fixed power-of-two size, on complex numbers held
+ * as two arrays of doubles (real and imaginary parts), computed in place.
+ * The tables of the transform are computed once, so a Fft can be reused for
+ * every row (or column) of the same size, but not shared between threads.
+ */
+public class Fft {
+
+    private final int size;
+
+    // the index each index is swapped with before the butterflies
+    private final int[] reversed;
+
+    // cos and sin of 2 pi k / size, for k < size / 2
+    private final double[] cos;
+    private final double[] sin;
+
+    /**
+     * Constructor.
+     * @param size The number of complex numbers transformed, a power of two
+     */
+    public Fft(int size) {
+        if (size <= 0 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("The size of a FFT must be a power of two: " + size);
+        }
+        this.size = size;
+        int bits = Integer.numberOfTrailingZeros(size);
+        reversed = new int[size];
+        for (int i = 0; i < size; i++) {
+            reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+        cos = new double[size / 2];
+        sin = new double[size / 2];
+        for (int k = 0; k < size / 2; k++) {
+            cos[k] = Math.cos(2 * Math.PI * k / size);
+            sin[k] = Math.sin(2 * Math.PI * k / size);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Transforms size consecutive complex numbers.
+     * The inverse transform is not divided by the size.
+     * @param re The real parts
+     * @param im The imaginary parts
+     * @param offset The index of the first number
+     * @param inverse true for the inverse transform
+     */
+    public void transform(double[] re, double[] im, int offset, boolean inverse) {
+        for (int i = 0; i < size; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                double t = re[offset + i];
+                re[offset + i] = re[offset + j];
+                re[offset + j] = t;
+                t = im[offset + i];
+                im[offset + i] = im[offset + j];
+                im[offset + j] = t;
+            }
+        }
+
+        // Butterflies of the transforms of size 2 * half, from the transforms of size half
+        for (int half = 1; half < size; half *= 2) {
+            int step = size / (2 * half);
+            for (int k = 0; k < half; k++) {
+                double c = cos[k * step];
+                double s = inverse ? sin[k * step] : -sin[k * step];
+                for (int a = offset + k; a < offset + size; a += 2 * half) {
+                    int b = a + half;
+                    double tr = re[b] * c - im[b] * s;
+                    double ti = re[b] * s + im[b] * c;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the smallest power of two at least as large as a number.
+     * @param n The number, at least 1
+     * @return The power of two
+     */
+    public static int ceilPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+}
@@ -0,0 +1,294 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.Arrays;
+
+/**
+ * Applies a large kernel in the frequency domain, by overlap-save: the part of the image
+ * is cut in tiles whose Fourier transform is multiplied by the transform of the kernel,
+ * each tile overlapping the previous one by the size of the kernel less one, so that the
+ * pixels of a tile the transform wraps around are the ones the next tile computes.
+ *
+ * The cost per pixel grows with the logarithm of the tile size rather than with the number
+ * of weights, so it beats the direct loop for large kernels (see isFaster()). The tiles are
+ * at most a few hundred pixels on a side, so the memory used does not depend on the image;
+ * the parts of an image are filtered in parallel like with any other worker, in blocks
+ * of whole tiles (see blockRows()).
+ *
+ * The channels are real and so is the kernel, so two channels are transformed at once,
+ * as the real and imaginary parts of the same complex numbers.
+ */
+public class FftFilterWorker extends Worker {
+
+    /**
+     * Kernels with fewer weights than this are always applied directly.
+     */
+    private static final int MIN_TAPS = 11 * 11;
+
+    /**
+     * The largest side of a tile, unless the kernel itself is larger.
+     */
+    private static final int MAX_TILE = 256;
+
+    /**
+     * The cost of a complex butterfly relative to one weight of the scalar direct loop
+     * (a multiply-add on three channels), measured on a 1024x768 image.
+     */
+    private static final double BUTTERFLY_COST = 1.0;
+
+    /**
+     * How many times faster the SIMD direct loop (see VectorFilterWorker) is than the scalar one
+     * on large kernels, measured on the same image.
+     */
+    private static final double VECTOR_SPEEDUP = 14.0;
+
+    private final Kernel kernel;
+
+    // the sides of the tiles
+    private final int tileRows;
+    private final int tileColumns;
+
+    /**
+     * Constructor.
+     * @param baseImage The original image, with a border of the kernel's radii
+     * @param start The row of the bordered image to start filtering from (inclusive)
+     * @param end The row of the bordered image to end filtering (exclusive)
+     * @param result The result image
+     * @param kernel The kernel
+     */
+    public FftFilterWorker(PixelBuffer baseImage, int start, int end, PixelBuffer result, Kernel kernel) {
+        super(baseImage, start, end, result);
+        this.kernel = kernel;
+        int[] tile = bestTile(kernel, baseImage);
+        this.tileRows = tile[0];
+        this.tileColumns = tile[1];
+    }
+
+    /**
+     * Tells if a kernel is applied faster by this worker than by the direct loop
+     * (one multiply-add per weight per pixel, or per row and column weight if separable,
+     * many at once with SIMD), estimating the cost of the best tiles for the image.
+     * Kernel.createWorker() asks for the whole image rather than for the block of rows
+     * of a worker, so that the blocks are filtered the same way.
+     * @param kernel The kernel
+     * @param width The width of the image, without its border
+     * @param rows The number of rows of the image, without its border
+     * @return true if the FFT is faster
+     */
+    public static boolean isFaster(Kernel kernel, int width, int rows) {
+        int taps = kernel.getWidth() * kernel.getHeight();
+        if (taps < MIN_TAPS || width <= 0 || rows <= 0) {
+            return false;
+        }
+        double directTaps = kernel.isSeparable() ? kernel.getWidth() + kernel.getHeight()
+                : VectorEngine.isAvailable() ? taps / VECTOR_SPEEDUP : taps;
+        int[] tile = bestTile(kernel.getWidth(), kernel.getHeight(), width, rows);
+        return cost(tile[0], tile[1], kernel.getWidth(), kernel.getHeight(), width, rows)
+                < directTaps * width * rows;
+    }
+
+    /**
+     * Returns the number of rows the tiles of an image move down by, so that the blocks of rows
+     * the image is split into (see TileScheduler) can be made of whole tiles.
+     * @param kernel The kernel
+     * @param baseImage The image, with a border of the kernel's radii
+     * @return The number of rows
+     */
+    public static int blockRows(Kernel kernel, PixelBuffer baseImage) {
+        return bestTile(kernel, baseImage)[0] - kernel.getHeight() + 1;
+    }
+
+    /**
+     * Finds the sides of the tiles for all the rows of an image, the same for every worker of the image.
+     * @return The number of rows and of columns of a tile
+     */
+    private static int[] bestTile(Kernel kernel, PixelBuffer baseImage) {
+        return bestTile(kernel.getWidth(), kernel.getHeight(), baseImage.getWidth() - kernel.getWidth() + 1,
+                baseImage.getHeight() - kernel.getHeight() + 1);
+    }
+
+    /**
+     * Finds the sides of the tiles (powers of two) that filter a part of an image at the lowest cost.
+     * @return The number of rows and of columns of a tile
+     */
+    private static int[] bestTile(int kernelWidth, int kernelHeight, int width, int rows) {
+        int[] best = null;
+        double bestCost = Double.MAX_VALUE;
+        int maxRows = Math.min(Fft.ceilPowerOfTwo(rows + kernelHeight - 1),
+                Math.max(MAX_TILE, Fft.ceilPowerOfTwo(2 * kernelHeight)));
+        int maxColumns = Math.min(Fft.ceilPowerOfTwo(width + kernelWidth - 1),
+                Math.max(MAX_TILE, Fft.ceilPowerOfTwo(2 * kernelWidth)));
+        for (int n = Fft.ceilPowerOfTwo(kernelHeight); n <= maxRows; n *= 2) {
+            for (int m = Fft.ceilPowerOfTwo(kernelWidth); m <= maxColumns; m *= 2) {
+                double cost = cost(n, m, kernelWidth, kernelHeight, width, rows);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = new int[] {n, m};
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimates the cost of filtering a part of an image with tiles of the given sides,
+     * in weights of a direct convolution: per tile, a forward and an inverse transform of
+     * two planes (the inverse transform of the rows only where there are pixels to keep),
+     * and the product with the transform of the kernel.
+     */
+    private static double cost(int n, int m, int kernelWidth, int kernelHeight, int width, int rows) {
+        int stepRows = n - kernelHeight + 1;
+        int stepColumns = m - kernelWidth + 1;
+        long tiles = (long) ((rows + stepRows - 1) / stepRows) * ((width + stepColumns - 1) / stepColumns);
+        double rowButterflies = m / 2.0 * Integer.numberOfTrailingZeros(m);
+        double columnButterflies = m * (n / 2.0 * Integer.numberOfTrailingZeros(n));
+        double butterflies = 2 * ((n + stepRows) * rowButterflies + 2 * columnButterflies);
+        return tiles * (butterflies * BUTTERFLY_COST + n * (double) m);
+    }
+
+    /**
+     * Computes the transform of a kernel for tiles of the given sides, flipped so that the product
+     * gives the correlation of the tile with the kernel, as the direct loop computes, and divided
+     * by n * m for the inverse transform. Kernel.getFftSpectrum() keeps it for the other workers.
+     * @param weights The weights of the kernel
+     * @param n The number of rows of a tile
+     * @param m The number of columns of a tile
+     * @return The real and imaginary parts of the transform
+     */
+    static double[][] spectrum(float[][] weights, int n, int m) {
+        double[] re = new double[n * m];
+        double[] im = new double[n * m];
+        double scale = 1.0 / (n * (double) m);
+        for (int k = 0; k < weights.length; k++) {
+            for (int l = 0; l < weights[k].length; l++) {
+                re[((n - k) % n) * m + (m - l) % m] = weights[k][l] * scale;
+            }
+        }
+        transform(re, im, n, new Fft(m), new Fft(n), new double[n], new double[n], false);
+        return new double[][] {re, im};
+    }
+
+    /**
+     * Applies the filter to a part of an image,
+     * from the startRow (inclusive) to the endRow (exclusive).
+     * The base image is expected to have a border of the kernel's radius,
+     * and the rows are rows of the bordered image.
+     * Modifies the filteredImage.
+     */
+    @Override
+    public void run() {
+        int kernelHeight = kernel.getHeight();
+        int kernelWidth = kernel.getWidth();
+        int radiusY = kernelHeight / 2;
+        int inWidth = image.getWidth();
+        int outWidth = inWidth - kernelWidth + 1;
+        int outRows = endRow - startRow;
+        int n = tileRows;
+        int m = tileColumns;
+        int stepRows = n - kernelHeight + 1;
+        int stepColumns = m - kernelWidth + 1;
+
+        Fft rowFft = new Fft(m);
+        Fft columnFft = new Fft(n);
+        double[] columnRe = new double[n];
+        double[] columnIm = new double[n];
+
+        // Computed by the first worker of the kernel using tiles of this size, only read here
+        double[][] spectrum = kernel.getFftSpectrum(n, m);
+        double[] kernelRe = spectrum[0];
+        double[] kernelIm = spectrum[1];
+
+        // red + i green, and blue
+        double[] re1 = PixelBufferPool.borrowDoubles(n * m);
+        double[] im1 = PixelBufferPool.borrowDoubles(n * m);
+        double[] re2 = PixelBufferPool.borrowDoubles(n * m);
+        double[] im2 = PixelBufferPool.borrowDoubles(n * m);
+        int[] in = image.getPixels();
+        int[] out = filteredImage.getPixels();
+        try {
+            for (int top = 0; top < outRows; top += stepRows) {
+                // The rows of the tile inside the part of the image (the others are 0)
+                int tileRowsIn = Math.min(n, outRows + kernelHeight - 1 - top);
+                for (int left = 0; left < outWidth; left += stepColumns) {
+                    int tileColumnsIn = Math.min(m, inWidth - left);
+                    Arrays.fill(re1, 0, n * m, 0);
+                    Arrays.fill(im1, 0, n * m, 0);
+                    Arrays.fill(re2, 0, n * m, 0);
+                    Arrays.fill(im2, 0, n * m, 0);
+                    for (int r = 0; r < tileRowsIn; r++) {
+                        int inOffset = (startRow - radiusY + top + r) * inWidth + left;
+                        for (int c = 0; c < tileColumnsIn; c++) {
+                            int pixel = in[inOffset + c];
+                            re1[r * m + c] = PixelBuffer.red(pixel);
+                            im1[r * m + c] = PixelBuffer.green(pixel);
+                            re2[r * m + c] = PixelBuffer.blue(pixel);
+                        }
+                    }
+                    transform(re1, im1, tileRowsIn, rowFft, columnFft, columnRe, columnIm, false);
+                    transform(re2, im2, tileRowsIn, rowFft, columnFft, columnRe, columnIm, false);
+                    for (int i = 0; i < n * m; i++) {
+                        double kr = kernelRe[i];
+                        double ki = kernelIm[i];
+                        double r1 = re1[i];
+                        re1[i] = r1 * kr - im1[i] * ki;
+                        im1[i] = r1 * ki + im1[i] * kr;
+                        double r2 = re2[i];
+                        re2[i] = r2 * kr - im2[i] * ki;
+                        im2[i] = r2 * ki + im2[i] * kr;
+                    }
+
+                    // Only the first stepRows rows and stepColumns columns are free of wrap-around
+                    int keepRows = Math.min(stepRows, outRows - top);
+                    int keepColumns = Math.min(stepColumns, outWidth - left);
+                    transform(re1, im1, keepRows, rowFft, columnFft, columnRe, columnIm, true);
+                    transform(re2, im2, keepRows, rowFft, columnFft, columnRe, columnIm, true);
+                    for (int r = 0; r < keepRows; r++) {
+                        int outOffset = resultOffset + (startRow - radiusY + top + r) * resultStride + left;
+                        for (int c = 0; c < keepColumns; c++) {
+                            int i = r * m + c;
+                            out[outOffset + c] = PixelBuffer.pack(clampRGB(re1[i]), clampRGB(im1[i]), clampRGB(re2[i]));
+                        }
+                    }
+                }
+            }
+        } finally {
+            PixelBufferPool.release(re1);
+            PixelBufferPool.release(im1);
+            PixelBufferPool.release(re2);
+            PixelBufferPool.release(im2);
+        }
+    }
+
+    /**
+     * Transforms a tile in two dimensions: its rows, then its columns (or the other way
+     * round for the inverse transform, which is then only needed on some rows).
+     * @param usedRows The rows that are not all 0 (forward), or that are needed (inverse)
+     * @param columnRe Room for the real parts of a column
+     * @param columnIm Room for the imaginary parts of a column
+     */
+    private static void transform(double[] re, double[] im, int usedRows, Fft rowFft, Fft columnFft,
+            double[] columnRe, double[] columnIm, boolean inverse) {
+        int m = rowFft.getSize();
+        int rows = columnFft.getSize();
+        if (!inverse) {
+            for (int r = 0; r < usedRows; r++) {
+                rowFft.transform(re, im, r * m, false);
+            }
+        }
+        for (int c = 0; c < m; c++) {
+            for (int r = 0; r < rows; r++) {
+                columnRe[r] = re[r * m + c];
+                columnIm[r] = im[r * m + c];
+            }
+            columnFft.transform(columnRe, columnIm, 0, inverse);
+            for (int r = 0; r < rows; r++) {
+                re[r * m + c] = columnRe[r];
+                im[r * m + c] = columnIm[r];
+            }
+        }
+        if (inverse) {
+            for (int r = 0; r < usedRows; r++) {
+                rowFft.transform(re, im, r * m, true);
+            }
+        }
+    }
+}
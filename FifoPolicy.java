@@ -0,0 +1,31 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.ArrayDeque;
+
+/**
+ * Runs the tasks in the order they were submitted.
+ */
+public class FifoPolicy implements SchedulingPolicy {
+
+    private final ArrayDeque<TaskPool.Task> waitingList = new ArrayDeque<>();
+
+    @Override
+    public void add(TaskPool.Task task) {
+        waitingList.add(task);
+    }
+
+    @Override
+    public TaskPool.Task poll(long nowNanos) {
+        return waitingList.poll();
+    }
+
+    @Override
+    public int size() {
+        return waitingList.size();
+    }
+
+    @Override
+    public String getName() {
+        return "FIFO";
+    }
+}
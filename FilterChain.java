@@ -0,0 +1,133 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several filters applied one after the other, e.g. "GREY,BLUR,EDGE":
+ * the result is the same as filtering the image with each step in turn,
+ * each step seeing the result of the previous one extended with the same BorderMode.
+ *
+ * The steps are fused (see ChainWorker): the image is filtered a band of rows at a
+ * time, the band going through every step while it is still in the cache, so that
+ * no intermediate image is ever held in full. Each band is computed with the halo
+ * of rows the later steps need, which is recomputed by the neighbouring band.
+ */
+public class FilterChain {
+
+    // the kernel of each step, null for the greyscale filter
+    private final List<Kernel> steps;
+
+    private final int radiusX;
+    private final int radiusY;
+
+    /**
+     * Constructor.
+     * @param steps The kernel of each step, null for the greyscale filter
+     */
+    public FilterChain(List<Kernel> steps) {
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException("A filter chain needs at least one step");
+        }
+        this.steps = new ArrayList<>(steps);
+        int x = 0;
+        int y = 0;
+        for (Kernel kernel : steps) {
+            if (kernel != null) {
+                x += kernel.getRadiusX();
+                y += kernel.getRadiusY();
+            }
+        }
+        this.radiusX = x;
+        this.radiusY = y;
+    }
+
+    /**
+     * Tells if a filter type names a chain of filters rather than a single filter.
+     * @param filterType The filter type
+     * @return true if it is a comma-separated list of filters
+     */
+    public static boolean isChain(String filterType) {
+        return filterType.indexOf(',') >= 0;
+    }
+
+    /**
+     * Creates a chain from a comma-separated list of built-in filters (GREY or a kernel,
+     * see Kernel.create). Returns null if one of them is not a built-in filter.
+     * @param filterType The filters, in the order they are applied
+     * @return The chain.
+     */
+    public static FilterChain create(String filterType) {
+        List<Kernel> steps = new ArrayList<>();
+        for (String step : filterType.split(",")) {
+            step = step.trim().toUpperCase();
+            if (step.equals("GREY")) {
+                steps.add(null);
+            } else {
+                Kernel kernel = Kernel.create(step);
+                if (kernel == null) {
+                    return null;
+                }
+                steps.add(kernel);
+            }
+        }
+        return new FilterChain(steps);
+    }
+
+    /**
+     * @return The kernel of each step, null for the greyscale filter
+     */
+    public List<Kernel> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return The number of columns on each side of a pixel its filtered value depends on
+     */
+    public int getRadiusX() {
+        return radiusX;
+    }
+
+    /**
+     * @return The number of rows above and below a pixel its filtered value depends on
+     */
+    public int getRadiusY() {
+        return radiusY;
+    }
+
+    /**
+     * @return The taps of all the steps (see Kernel.getTaps()), a greyscale step counting as one
+     */
+    public int getTaps() {
+        int taps = 0;
+        for (Kernel kernel : steps) {
+            taps += kernel == null ? 1 : kernel.getTaps();
+        }
+        return taps;
+    }
+
+    /**
+     * Identifies the chain by the identities of its steps (see Kernel.getIdentity()).
+     * @return A string that differs for any two chains with different steps
+     */
+    public String getIdentity() {
+        StringBuilder identity = new StringBuilder();
+        for (Kernel kernel : steps) {
+            identity.append(identity.length() == 0 ? "" : ",").append(kernel == null ? "GREY" : kernel.getIdentity());
+        }
+        return identity.toString();
+    }
+
+    /**
+     * Creates the worker that applies the chain to a part of an image.
+     * @param baseImage The original image, without any border
+     * @param start The row of the image to start filtering from (inclusive)
+     * @param end The row of the image to end filtering (exclusive)
+     * @param result The result image
+     * @param mode What each step sees beyond the edges of the image
+     * @return The worker
+     */
+    public Worker createWorker(PixelBuffer baseImage, int start, int end, PixelBuffer result, BorderMode mode) {
+        return new ChainWorker(this, mode, baseImage, 0, 0, baseImage.getHeight(), start, end, result, 0);
+    }
+}
@@ -1,15 +1,15 @@
 package com.kcl.osc.imageprocessor;
 
-import javafx.scene.paint.Color;
-
 /**
  * Applies the given filter.
+ * Kernels of any odd width and height are supported. The common
+ * 3x3 and 5x5 cases have their own fully unrolled loops.
  */
 public class FilterWorker extends Worker {
 
     private float[][] filter;
 
-    public FilterWorker(Color[][] baseImage, int start, int end, Color[][] result, float[][] filter) {
+    public FilterWorker(PixelBuffer baseImage, int start, int end, PixelBuffer result, float[][] filter) {
         super(baseImage, start, end, result);
         this.filter = filter;
     }
@@ -17,30 +17,155 @@ public class FilterWorker extends Worker {
     /**
      * Applies the filter to a part of an image,
      * from the startRow (inclusive) to the endRow (exclusive).
+     * The base image is expected to have a border of the kernel's radius,
+     * and the rows are rows of the bordered image.
      * Modifies the filteredImage.
      */
     @Override
     public void run() {
+        int[] in = image.getPixels();
+        int[] out = filteredImage.getPixels();
+        int inWidth = image.getWidth();
+        int outWidth = resultStride;
+
+        if (filter.length == 3 && filter[0].length == 3) {
+            run3x3(in, out, inWidth, outWidth);
+        } else if (filter.length == 5 && filter[0].length == 5) {
+            run5x5(in, out, inWidth, outWidth);
+        } else {
+            runGeneric(in, out, inWidth, outWidth);
+        }
+    }
+
+    /**
+     * The general case, for any odd width and height.
+     */
+    private void runGeneric(int[] in, int[] out, int inWidth, int outWidth) {
+        int radiusX = filter[0].length / 2;
+        int radiusY = filter.length / 2;
+
         for (int i = startRow; i < endRow; i++) {
-            for (int j = 1; j < image[i].length -1; j++) {
+            int outOffset = resultOffset + (i - radiusY) * outWidth - radiusX;
+            for (int j = radiusX; j < inWidth - radiusX; j++) {
 
                 double red = 0.0;
                 double green = 0.0;
                 double blue = 0.0;
 
-                for (int k = -1; k < filter.length - 1; k++) {
-                    for (int l = -1; l < filter[0].length - 1; l++) {
-                        red += image[i + k][j + l].getRed() * filter[1 + k][1 + l];
-                        green += image[i + k][j + l].getGreen() * filter[1 + k][1 + l];
-                        blue += image[i + k][j + l].getBlue() * filter[1 + k][1 + l];
+                for (int k = 0; k < filter.length; k++) {
+                    float[] weights = filter[k];
+                    int rowOffset = (i - radiusY + k) * inWidth + j - radiusX;
+                    for (int l = 0; l < weights.length; l++) {
+                        int pixel = in[rowOffset + l];
+                        red += PixelBuffer.red(pixel) * weights[l];
+                        green += PixelBuffer.green(pixel) * weights[l];
+                        blue += PixelBuffer.blue(pixel) * weights[l];
                     }
                 }
 
-                red = clampRGB(red);
-                green = clampRGB(green);
-                blue = clampRGB(blue);
-                filteredImage[i - 1][j - 1] = new Color(red,green,blue,1.0);
+                out[outOffset + j] = PixelBuffer.pack(clampRGB(red), clampRGB(green), clampRGB(blue));
+            }
+        }
+    }
+
+    /**
+     * The 3x3 case, fully unrolled with the weights held in local variables.
+     */
+    private void run3x3(int[] in, int[] out, int inWidth, int outWidth) {
+        final double w00 = filter[0][0], w01 = filter[0][1], w02 = filter[0][2];
+        final double w10 = filter[1][0], w11 = filter[1][1], w12 = filter[1][2];
+        final double w20 = filter[2][0], w21 = filter[2][1], w22 = filter[2][2];
+
+        for (int i = startRow; i < endRow; i++) {
+            int row0 = (i - 1) * inWidth;
+            int row1 = i * inWidth;
+            int row2 = (i + 1) * inWidth;
+            int outOffset = resultOffset + (i - 1) * outWidth - 1;
+            for (int j = 1; j < inWidth - 1; j++) {
+                int p00 = in[row0 + j - 1];
+                int p01 = in[row0 + j];
+                int p02 = in[row0 + j + 1];
+                int p10 = in[row1 + j - 1];
+                int p11 = in[row1 + j];
+                int p12 = in[row1 + j + 1];
+                int p20 = in[row2 + j - 1];
+                int p21 = in[row2 + j];
+                int p22 = in[row2 + j + 1];
+                double red = PixelBuffer.red(p00) * w00 + PixelBuffer.red(p01) * w01 + PixelBuffer.red(p02) * w02
+                        + PixelBuffer.red(p10) * w10 + PixelBuffer.red(p11) * w11 + PixelBuffer.red(p12) * w12
+                        + PixelBuffer.red(p20) * w20 + PixelBuffer.red(p21) * w21 + PixelBuffer.red(p22) * w22;
+                double green = PixelBuffer.green(p00) * w00 + PixelBuffer.green(p01) * w01 + PixelBuffer.green(p02) * w02
+                        + PixelBuffer.green(p10) * w10 + PixelBuffer.green(p11) * w11 + PixelBuffer.green(p12) * w12
+                        + PixelBuffer.green(p20) * w20 + PixelBuffer.green(p21) * w21 + PixelBuffer.green(p22) * w22;
+                double blue = PixelBuffer.blue(p00) * w00 + PixelBuffer.blue(p01) * w01 + PixelBuffer.blue(p02) * w02
+                        + PixelBuffer.blue(p10) * w10 + PixelBuffer.blue(p11) * w11 + PixelBuffer.blue(p12) * w12
+                        + PixelBuffer.blue(p20) * w20 + PixelBuffer.blue(p21) * w21 + PixelBuffer.blue(p22) * w22;
+
+                out[outOffset + j] = PixelBuffer.pack(clampRGB(red), clampRGB(green), clampRGB(blue));
+            }
+        }
+    }
+
+    /**
+     * The 5x5 case, fully unrolled with the weights held in local variables.
+     */
+    private void run5x5(int[] in, int[] out, int inWidth, int outWidth) {
+        final double w00 = filter[0][0], w01 = filter[0][1], w02 = filter[0][2], w03 = filter[0][3], w04 = filter[0][4];
+        final double w10 = filter[1][0], w11 = filter[1][1], w12 = filter[1][2], w13 = filter[1][3], w14 = filter[1][4];
+        final double w20 = filter[2][0], w21 = filter[2][1], w22 = filter[2][2], w23 = filter[2][3], w24 = filter[2][4];
+        final double w30 = filter[3][0], w31 = filter[3][1], w32 = filter[3][2], w33 = filter[3][3], w34 = filter[3][4];
+        final double w40 = filter[4][0], w41 = filter[4][1], w42 = filter[4][2], w43 = filter[4][3], w44 = filter[4][4];
+
+        for (int i = startRow; i < endRow; i++) {
+            int row0 = (i - 2) * inWidth;
+            int row1 = (i - 1) * inWidth;
+            int row2 = i * inWidth;
+            int row3 = (i + 1) * inWidth;
+            int row4 = (i + 2) * inWidth;
+            int outOffset = resultOffset + (i - 2) * outWidth - 2;
+            for (int j = 2; j < inWidth - 2; j++) {
+                int p00 = in[row0 + j - 2];
+                int p01 = in[row0 + j - 1];
+                int p02 = in[row0 + j];
+                int p03 = in[row0 + j + 1];
+                int p04 = in[row0 + j + 2];
+                int p10 = in[row1 + j - 2];
+                int p11 = in[row1 + j - 1];
+                int p12 = in[row1 + j];
+                int p13 = in[row1 + j + 1];
+                int p14 = in[row1 + j + 2];
+                int p20 = in[row2 + j - 2];
+                int p21 = in[row2 + j - 1];
+                int p22 = in[row2 + j];
+                int p23 = in[row2 + j + 1];
+                int p24 = in[row2 + j + 2];
+                int p30 = in[row3 + j - 2];
+                int p31 = in[row3 + j - 1];
+                int p32 = in[row3 + j];
+                int p33 = in[row3 + j + 1];
+                int p34 = in[row3 + j + 2];
+                int p40 = in[row4 + j - 2];
+                int p41 = in[row4 + j - 1];
+                int p42 = in[row4 + j];
+                int p43 = in[row4 + j + 1];
+                int p44 = in[row4 + j + 2];
+                double red = PixelBuffer.red(p00) * w00 + PixelBuffer.red(p01) * w01 + PixelBuffer.red(p02) * w02 + PixelBuffer.red(p03) * w03 + PixelBuffer.red(p04) * w04
+                        + PixelBuffer.red(p10) * w10 + PixelBuffer.red(p11) * w11 + PixelBuffer.red(p12) * w12 + PixelBuffer.red(p13) * w13 + PixelBuffer.red(p14) * w14
+                        + PixelBuffer.red(p20) * w20 + PixelBuffer.red(p21) * w21 + PixelBuffer.red(p22) * w22 + PixelBuffer.red(p23) * w23 + PixelBuffer.red(p24) * w24
+                        + PixelBuffer.red(p30) * w30 + PixelBuffer.red(p31) * w31 + PixelBuffer.red(p32) * w32 + PixelBuffer.red(p33) * w33 + PixelBuffer.red(p34) * w34
+                        + PixelBuffer.red(p40) * w40 + PixelBuffer.red(p41) * w41 + PixelBuffer.red(p42) * w42 + PixelBuffer.red(p43) * w43 + PixelBuffer.red(p44) * w44;
+                double green = PixelBuffer.green(p00) * w00 + PixelBuffer.green(p01) * w01 + PixelBuffer.green(p02) * w02 + PixelBuffer.green(p03) * w03 + PixelBuffer.green(p04) * w04
+                        + PixelBuffer.green(p10) * w10 + PixelBuffer.green(p11) * w11 + PixelBuffer.green(p12) * w12 + PixelBuffer.green(p13) * w13 + PixelBuffer.green(p14) * w14
+                        + PixelBuffer.green(p20) * w20 + PixelBuffer.green(p21) * w21 + PixelBuffer.green(p22) * w22 + PixelBuffer.green(p23) * w23 + PixelBuffer.green(p24) * w24
+                        + PixelBuffer.green(p30) * w30 + PixelBuffer.green(p31) * w31 + PixelBuffer.green(p32) * w32 + PixelBuffer.green(p33) * w33 + PixelBuffer.green(p34) * w34
+                        + PixelBuffer.green(p40) * w40 + PixelBuffer.green(p41) * w41 + PixelBuffer.green(p42) * w42 + PixelBuffer.green(p43) * w43 + PixelBuffer.green(p44) * w44;
+                double blue = PixelBuffer.blue(p00) * w00 + PixelBuffer.blue(p01) * w01 + PixelBuffer.blue(p02) * w02 + PixelBuffer.blue(p03) * w03 + PixelBuffer.blue(p04) * w04
+                        + PixelBuffer.blue(p10) * w10 + PixelBuffer.blue(p11) * w11 + PixelBuffer.blue(p12) * w12 + PixelBuffer.blue(p13) * w13 + PixelBuffer.blue(p14) * w14
+                        + PixelBuffer.blue(p20) * w20 + PixelBuffer.blue(p21) * w21 + PixelBuffer.blue(p22) * w22 + PixelBuffer.blue(p23) * w23 + PixelBuffer.blue(p24) * w24
+                        + PixelBuffer.blue(p30) * w30 + PixelBuffer.blue(p31) * w31 + PixelBuffer.blue(p32) * w32 + PixelBuffer.blue(p33) * w33 + PixelBuffer.blue(p34) * w34
+                        + PixelBuffer.blue(p40) * w40 + PixelBuffer.blue(p41) * w41 + PixelBuffer.blue(p42) * w42 + PixelBuffer.blue(p43) * w43 + PixelBuffer.blue(p44) * w44;
 
+                out[outOffset + j] = PixelBuffer.pack(clampRGB(red), clampRGB(green), clampRGB(blue));
             }
         }
     }
@@ -0,0 +1,142 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * Applies a fixed-point filter with integer arithmetic only:
+ * the channels are multiplied by the integer weights and the sums are
+ * divided by a power of two with a shift, rounding to the nearest integer.
+ * The result is exactly the same as FilterWorker's.
+ *
+ * When all the weights are positive and sum up to at most 1 (as for BLUR),
+ * two channels are packed in the 16-bit halves of an int and filtered together.
+ */
+public class FixedPointFilterWorker extends Worker {
+
+    private static final int LOW_CHANNELS = 0x00FF00FF;
+
+    private int[][] filter;
+    private int shift;
+
+    public FixedPointFilterWorker(PixelBuffer baseImage, int start, int end, PixelBuffer result, Kernel kernel) {
+        super(baseImage, start, end, result);
+        this.filter = kernel.getFixedPointWeights();
+        this.shift = kernel.getFixedPointShift();
+    }
+
+    /**
+     * Applies the filter to a part of an image,
+     * from the startRow (inclusive) to the endRow (exclusive).
+     * The base image is expected to have a border of the kernel's radius,
+     * and the rows are rows of the bordered image.
+     * Modifies the filteredImage.
+     */
+    @Override
+    public void run() {
+        if (isPackable()) {
+            runPacked();
+        } else {
+            runChannels();
+        }
+    }
+
+    /**
+     * Two channels fit in the halves of an int if no weighted sum can carry into
+     * the next half: the weights must be positive and at most 2^shift in total.
+     * The shift must also be at most 8, so that the bits the upper half loses
+     * to the lower half when shifting do not reach the lower channel.
+     */
+    private boolean isPackable() {
+        if (shift > 8) {
+            return false;
+        }
+        int total = 0;
+        for (int[] row : filter) {
+            for (int weight : row) {
+                if (weight < 0) {
+                    return false;
+                }
+                total += weight;
+            }
+        }
+        return total <= 1 << shift;
+    }
+
+    /**
+     * Filters with one int sum per channel.
+     */
+    private void runChannels() {
+        int[] in = image.getPixels();
+        int[] out = filteredImage.getPixels();
+        int inWidth = image.getWidth();
+        int outWidth = resultStride;
+        int radiusX = filter[0].length / 2;
+        int radiusY = filter.length / 2;
+        int half = shift == 0 ? 0 : 1 << (shift - 1);
+
+        for (int i = startRow; i < endRow; i++) {
+            int outOffset = resultOffset + (i - radiusY) * outWidth - radiusX;
+            for (int j = radiusX; j < inWidth - radiusX; j++) {
+
+                int red = half;
+                int green = half;
+                int blue = half;
+
+                for (int k = 0; k < filter.length; k++) {
+                    int[] weights = filter[k];
+                    int rowOffset = (i - radiusY + k) * inWidth + j - radiusX;
+                    for (int l = 0; l < weights.length; l++) {
+                        int pixel = in[rowOffset + l];
+                        red += PixelBuffer.red(pixel) * weights[l];
+                        green += PixelBuffer.green(pixel) * weights[l];
+                        blue += PixelBuffer.blue(pixel) * weights[l];
+                    }
+                }
+
+                out[outOffset + j] = PixelBuffer.pack(clamp(red >> shift), clamp(green >> shift), clamp(blue >> shift));
+            }
+        }
+    }
+
+    /**
+     * Filters red and blue together in one int, and alpha and green in another.
+     * No clamping is needed since the weights are positive and sum up to at most 1.
+     */
+    private void runPacked() {
+        int[] in = image.getPixels();
+        int[] out = filteredImage.getPixels();
+        int inWidth = image.getWidth();
+        int outWidth = resultStride;
+        int radiusX = filter[0].length / 2;
+        int radiusY = filter.length / 2;
+        int half = shift == 0 ? 0 : (1 << (shift - 1)) * 0x00010001;
+
+        for (int i = startRow; i < endRow; i++) {
+            int outOffset = resultOffset + (i - radiusY) * outWidth - radiusX;
+            for (int j = radiusX; j < inWidth - radiusX; j++) {
+
+                int redBlue = half;
+                int green = half;
+
+                for (int k = 0; k < filter.length; k++) {
+                    int[] weights = filter[k];
+                    int rowOffset = (i - radiusY + k) * inWidth + j - radiusX;
+                    for (int l = 0; l < weights.length; l++) {
+                        int pixel = in[rowOffset + l];
+                        redBlue += (pixel & LOW_CHANNELS) * weights[l];
+                        green += ((pixel >>> 8) & LOW_CHANNELS) * weights[l];
+                    }
+                }
+
+                out[outOffset + j] = 0xFF000000
+                        | ((redBlue >>> shift) & LOW_CHANNELS)
+                        | (((green >>> shift) & 0xFF) << 8);
+            }
+        }
+    }
+
+    /**
+     * The integer version of clampRGB.
+     */
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -1,16 +1,30 @@
 package com.kcl.osc.imageprocessor;
 
-import javafx.scene.paint.Color;
-
 /**
  * Applies the greyscale filter.
  */
 public class GreyscaleWorker extends Worker{
 
-    public GreyscaleWorker(Color[][] baseImage, int start, int end, Color[][] result) {
+    public GreyscaleWorker(PixelBuffer baseImage, int start, int end, PixelBuffer result) {
         super(baseImage, start, end, result);
     }
 
+    /**
+     * Creates the worker that applies the greyscale filter to a part of an image,
+     * using SIMD instructions when VectorEngine.isAvailable().
+     * @param baseImage The original image
+     * @param start The row of the image to start filtering from (inclusive)
+     * @param end The row of the image to end filtering (exclusive)
+     * @param result The result image
+     * @return The worker
+     */
+    public static Worker create(PixelBuffer baseImage, int start, int end, PixelBuffer result) {
+        if (VectorEngine.isAvailable()) {
+            return new VectorGreyscaleWorker(baseImage, start, end, result);
+        }
+        return new GreyscaleWorker(baseImage, start, end, result);
+    }
+
     /**
      * Applies the greyscale filter to a part of an image,
      * from the startRow (inclusive) to the endRow (exclusive).
@@ -18,19 +32,15 @@ public class GreyscaleWorker extends Worker{
      */
     @Override
     public void run() {
-        for (int i = startRow; i < endRow; i++) {
-            for (int j = 0; j < (image[i].length); j++) {
-
-                double red = image[i][j].getRed();
-                double green = image[i][j].getGreen();
-                double blue = image[i][j].getBlue();
-
-                double newRGB = (red + green + blue) / 3;
-                newRGB = clampRGB(newRGB);
-
-                Color newPixel = new Color(newRGB, newRGB, newRGB, 1.0);
-                filteredImage[i][j] = newPixel;
-            }
+        int[] in = image.getPixels();
+        int[] out = filteredImage.getPixels();
+        int width = image.getWidth();
+
+        for (int i = startRow * width; i < endRow * width; i++) {
+            int pixel = in[i];
+            double newRGB = (PixelBuffer.red(pixel) + PixelBuffer.green(pixel) + PixelBuffer.blue(pixel)) / 3.0;
+            int grey = clampRGB(newRGB);
+            out[i] = PixelBuffer.pack(grey, grey, grey);
         }
     }
 
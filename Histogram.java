@@ -0,0 +1,96 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values with one bucket per power of two,
+ * cheap enough to record into from every thread without contention:
+ * recording a value is a couple of LongAdder increments.
+ * Percentiles are therefore known to within a factor of two.
+ */
+public class Histogram {
+
+    // bucket i counts the values in [2^(i-1), 2^i), bucket 0 counts the zeros
+    private final LongAdder[] buckets;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    public Histogram() {
+        buckets = new LongAdder[65];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     * @param value The value
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return The mean of the values recorded, 0 if there are none
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Estimates a percentile as the upper bound of the bucket it falls in
+     * (never more than the largest value recorded).
+     * @param percentile The percentile, between 0 and 100
+     * @return The estimate, 0 if no value has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank) {
+                long upperBound = i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upperBound, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets all the values recorded.
+     */
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+}
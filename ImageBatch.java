@@ -0,0 +1,152 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Small images filtered back to back by one thread, as a single task of a TaskPool.
+ *
+ * Handing an image to a thread of the TaskPool, and splitting it between the threads
+ * of the TileScheduler, costs a few microseconds each, as much as filtering a thumbnail:
+ * images below smallImagePixels() are batched by the Pipeline and filtered whole,
+ * without being split, so that the cost of a hand-over is shared by the whole batch.
+ */
+public class ImageBatch implements Runnable, Costed {
+
+    /**
+     * A batch is closed when it holds this many times the small-image threshold in pixels.
+     */
+    private static final int THRESHOLDS_PER_BATCH = 8;
+
+    /**
+     * A batch is closed when it holds this many images, however small.
+     */
+    private static final int MAX_IMAGES = 64;
+
+    /**
+     * The small-image threshold is set so that hand-overs cost at most
+     * one part in this of the time an image takes to filter.
+     */
+    private static final int OVERHEAD_RATIO = 20;
+
+    /**
+     * The side of the blank image filtered to measure the cost of the filter per pixel.
+     */
+    private static final int CALIBRATION_SIZE = 128;
+
+    private static final int CALIBRATION_RUNS = 8;
+
+    private static final long MIN_THRESHOLD = 16 * 1024;
+    private static final long MAX_THRESHOLD = 1024 * 1024;
+
+    private final List<Runnable> tasks;
+
+    // the pixels, cost and highest priority of the images in the batch
+    private long pixels;
+    private long cost;
+    private int priority;
+
+    // the number of pixels a batch holds before it is closed
+    private final long capacity;
+
+    /**
+     * Constructor.
+     * @param threshold The small-image threshold, see smallImagePixels()
+     */
+    public ImageBatch(long threshold) {
+        this.tasks = new ArrayList<>();
+        this.capacity = threshold * THRESHOLDS_PER_BATCH;
+        this.priority = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Adds an image to the batch.
+     * @param task Filters the image, on the calling thread
+     * @param imagePixels The number of pixels of the image
+     * @param imageCost The cost of the image (see Costed)
+     * @param imagePriority The priority class of the image (see Costed)
+     */
+    public void add(Runnable task, long imagePixels, long imageCost, int imagePriority) {
+        tasks.add(task);
+        pixels += imagePixels;
+        cost += imageCost;
+        priority = Math.max(priority, imagePriority);
+    }
+
+    /**
+     * @return true if the batch holds no image
+     */
+    public boolean isEmpty() {
+        return tasks.isEmpty();
+    }
+
+    /**
+     * @return true if the batch should be submitted rather than take more images
+     */
+    public boolean isFull() {
+        return pixels >= capacity || tasks.size() >= MAX_IMAGES;
+    }
+
+    /**
+     * Filters the images of the batch one after the other.
+     * An image that fails does not stop the others.
+     */
+    @Override
+    public void run() {
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Metrics.error(Metrics.Stage.FILTER);
+                System.out.println("Could not filter an image of a batch: " + e);
+            }
+        }
+    }
+
+    @Override
+    public long getCost() {
+        return cost;
+    }
+
+    @Override
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Finds the size below which an image is filtered faster whole, in a batch, than split:
+     * the size at which handing it over (to the TaskPool, then to the TileScheduler) costs
+     * less than 1/OVERHEAD_RATIO of filtering it. Both are measured on this machine,
+     * filtering a blank image with the filter, which takes a few milliseconds.
+     * The threshold can be set with the system property imageprocessor.batch.pixels
+     * (0 to never batch).
+     * @param kernel The kernel of the filter, null for the greyscale filter
+     * @return The threshold in pixels
+     */
+    public static long smallImagePixels(Kernel kernel) {
+        Long configured = Long.getLong("imageprocessor.batch.pixels");
+        if (configured != null) {
+            return configured;
+        }
+
+        int radiusX = kernel == null ? 0 : kernel.getRadiusX();
+        int radiusY = kernel == null ? 0 : kernel.getRadiusY();
+        PixelBuffer input = new PixelBuffer(CALIBRATION_SIZE + 2 * radiusX, CALIBRATION_SIZE + 2 * radiusY);
+        PixelBuffer output = new PixelBuffer(CALIBRATION_SIZE, CALIBRATION_SIZE);
+        long filterNanos = Long.MAX_VALUE;
+        for (int i = 0; i < CALIBRATION_RUNS; i++) {
+            long startNanos = System.nanoTime();
+            Worker worker = kernel == null
+                    ? GreyscaleWorker.create(input, 0, CALIBRATION_SIZE, output)
+                    : kernel.createWorker(input, radiusY, radiusY + CALIBRATION_SIZE, output);
+            worker.run();
+            filterNanos = Math.min(filterNanos, System.nanoTime() - startNanos);
+        }
+        double nanosPerPixel = Math.max(1e-3, (double) filterNanos / (CALIBRATION_SIZE * CALIBRATION_SIZE));
+
+        // An image that is not batched is handed over twice
+        long overheadNanos = 2 * TileScheduler.handOverNanos();
+        long threshold = (long) (overheadNanos * OVERHEAD_RATIO / nanosPerPixel);
+        return Math.max(MIN_THRESHOLD, Math.min(MAX_THRESHOLD, threshold));
+    }
+}
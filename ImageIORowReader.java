@@ -0,0 +1,97 @@
+package com.kcl.osc.imageprocessor;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Reads the rows of any image ImageIO can decode.
+ * Formats stored in strips or tiles (TIFF) are read one region of rows at a time,
+ * which only decodes the rows asked for. The others (such as JPEG) decode a region
+ * from the top of the image, so they are decoded once, whole, on the first read,
+ * and their rows are copied from the decoded image: the decoded image is then
+ * held in memory, but not decoded again for each band.
+ * The pixels are copied as PixelBuffer.readPixels() copies them.
+ */
+public class ImageIORowReader implements RowReader {
+
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+
+    // true if a region of the image can be decoded without the rows above it
+    private final boolean regions;
+
+    // the whole decoded image, null until the first read or if read by regions
+    private BufferedImage decoded;
+
+    // the next row to read
+    private int row;
+
+    public ImageIORowReader(File file) throws IOException {
+        input = ImageIO.createImageInputStream(file);
+        if (input == null) {
+            throw new IOException("Cannot open " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("No reader for " + file);
+        }
+        reader = readers.next();
+        reader.setInput(input);
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+        String format = reader.getFormatName();
+        regions = format.equalsIgnoreCase("tif") || format.equalsIgnoreCase("tiff");
+        row = 0;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean holdsWholeImage() {
+        return !regions;
+    }
+
+    @Override
+    public void readRows(int count, int[] pixels, int offset, int scanline) throws IOException {
+        if (regions) {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, row, width, count));
+            PixelBuffer.readPixels(reader.read(0, param), pixels, offset, scanline);
+        } else {
+            if (decoded == null) {
+                decoded = reader.read(0);
+            }
+            PixelBuffer.readPixels(decoded, row, count, pixels, offset, scanline);
+        }
+        row += count;
+        if (row >= height) {
+            // Not needed any more
+            decoded = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        decoded = null;
+        reader.dispose();
+        input.close();
+    }
+}
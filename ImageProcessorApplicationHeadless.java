@@ -0,0 +1,226 @@
+package com.kcl.osc.imageprocessor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+
+/**
+ * The headless version of ImageProcessorApplicationMT: a plain main entry point
+ * that decodes and encodes with ImageIO and never starts the JavaFX toolkit,
+ * for servers without a display.
+ *
+ * Usage: ImageProcessorApplicationHeadless [--watch] [filter [folder]]
+ * The filter defaults to EDGE and the folder to img.
+ * With --watch, the application keeps running as a daemon (see WatchDaemon) and filters
+ * the images created or modified in the folder, rather than the images already there.
+ */
+public class ImageProcessorApplicationHeadless {
+    /**
+     * The filtering operation used when none is given. Options are
+     * IDENTITY, EDGE, BLUR, SHARPEN, EMBOSS, GREY, BOX:radius, GAUSSIAN:sigma,
+     * MEDIAN:radius, RANK:radius:percentile,
+     * or a comma-separated chain of them applied in turn, e.g. GREY,BLUR,EDGE
+     */
+    private static final String DEFAULT_FILTER = "EDGE";
+
+    /**
+     * The folder the images are read from when none is given.
+     */
+    private static final String DEFAULT_FOLDER = "img";
+
+    /**
+     * Set this boolean to false if you do NOT wish the new images to be
+     * saved after processing.
+     */
+    private static final boolean saveNewImages = true;
+
+    /**
+     * The number of times the filtering of all images is executed.
+     * Useful to set it > 1 for performance measurement.
+     */
+    private static final int NUMBER_OF_RUN = 1;
+
+    /**
+     * As in ImageProcessorApplicationMT, the number of decoded images that may wait
+     * for a thread of the pool. Can be changed with the system property imageprocessor.prefetch.
+     */
+    private static final int PREFETCH = Math.max(1, Integer.getInteger("imageprocessor.prefetch", ParallelismBudget.total()));
+
+    /**
+     * The number of times the filter is run on a blank image before watching a folder,
+     * so that the first images arriving are filtered by compiled code.
+     */
+    private static final int WARM_UP_RUNS = 20;
+
+    public static void main(String[] args) throws Exception {
+        boolean watch = args.length > 0 && args[0].equals("--watch");
+        int first = watch ? 1 : 0;
+        String filter = args.length > first ? args[first].toUpperCase() : DEFAULT_FILTER;
+        String folder = args.length > first + 1 ? args[first + 1] : DEFAULT_FOLDER;
+
+        System.out.println("Working.");
+        System.out.println(ParallelismBudget.describe());
+
+        TaskPool threadPool = new TaskPool(ParallelismBudget.total(), PREFETCH);
+        threadPool.start();
+
+        if (watch) {
+            watch(Paths.get(folder), filter, threadPool);
+            return;
+        }
+
+        long time = 0;
+        for (int k = 0; k < NUMBER_OF_RUN; k++) {
+
+            long startTime = System.nanoTime();
+
+            // For each image found, decode it and submit an image processor to the thread pool.
+            // Submitting blocks while PREFETCH images are waiting, so images are decoded just in time
+            try (Stream<File> images = findImages(Paths.get(folder))) {
+                for (Iterator<File> it = images.iterator(); it.hasNext(); ) {
+                    Runnable processor = createProcessor(it.next(), filter);
+                    if (processor != null) {
+                        threadPool.submit(processor);
+                    }
+                }
+            }
+            // Wait for all tasks in the thread pool to terminate
+            threadPool.join();
+
+            long endTime = System.nanoTime();
+            time += TimeUnit.MILLISECONDS.convert((endTime-startTime), TimeUnit.NANOSECONDS);
+        }
+        threadPool.shutdown();
+        System.out.println("Done.");
+
+        // Calculating running time
+        long averageTime = time / NUMBER_OF_RUN;
+        System.out.println("Running time (average of " + NUMBER_OF_RUN + " runs): " + averageTime + "ms");
+        Metrics.dump();
+    }
+
+    /**
+     * Filters the images created or modified in a folder until the process is stopped.
+     * The metrics are printed when it stops.
+     * @param folder The folder
+     * @param filter The filter to use
+     * @param threadPool The thread pool filtering the images
+     */
+    private static void watch(Path folder, String filter, TaskPool threadPool) throws IOException {
+        BufferedImage blank = new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            new ImageProcessorHeadless(blank, filter, false, null).run();
+        }
+        Metrics.reset();
+
+        WatchDaemon daemon = new WatchDaemon(folder, threadPool, file -> createProcessor(file, filter));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.close();
+            } catch (IOException e) {
+                // exiting anyway
+            }
+            Metrics.dump();
+        }));
+        System.out.println("Watching " + folder + ".");
+        daemon.run();
+    }
+
+    /**
+     * Finds the images of a folder and its sub-folders.
+     * The folder is walked lazily, as the images are taken from the stream,
+     * which must be closed.
+     * @param folder The folder
+     * @return The image files found in the folder.
+     */
+    private static Stream<File> findImages(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) {
+            return Stream.empty();
+        }
+        return Files.walk(folder)
+                .filter(Files::isRegularFile)
+                .map(Path::toFile)
+                .filter(f -> !f.getName().startsWith("."));
+    }
+
+    /**
+     * Decodes an image and creates the image processor that filters it, once its
+     * working set has been reserved from the MemoryBudget (waiting for room if needed).
+     * Images too large to be held in memory are not decoded, but streamed from their file.
+     * @param file The image file
+     * @param filter The filter to use
+     * @return The image processor, releasing the reservation when it terminates,
+     * or null if the file could not be decoded
+     */
+    private static Runnable createProcessor(File file, String filter) {
+        String opname = file.getName() + "_filtered.png";
+        MemoryBudget.Reservation memory;
+        try {
+            memory = MemoryBudget.reserve(file, filter.equals("GREY") ? null : Kernel.create(filter));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            if (memory.isStreamed()) {
+                return new Admitted(new StreamingImageProcessor(file, filter, saveNewImages, opname), memory);
+            }
+            long startNanos = System.nanoTime();
+            BufferedImage img = ImageIO.read(file);
+            Metrics.record(Metrics.Stage.DECODE, startNanos);
+            if (img == null) {
+                Metrics.error(Metrics.Stage.DECODE);
+                System.out.println("Not an image: " + file);
+                memory.close();
+                return null;
+            }
+            return new Admitted(new ImageProcessorHeadless(img, filter, saveNewImages, opname), memory);
+        } catch (IOException e) {
+            Metrics.error(Metrics.Stage.DECODE);
+            System.out.println("Could not read " + file + ": " + e.getMessage());
+            memory.close();
+            return null;
+        }
+    }
+
+    /**
+     * An image processor holding a MemoryBudget reservation, released when it terminates.
+     */
+    private static class Admitted implements Runnable, Costed {
+        private final Runnable processor;
+        private final Costed cost;
+        private final MemoryBudget.Reservation memory;
+
+        <P extends Runnable & Costed> Admitted(P processor, MemoryBudget.Reservation memory) {
+            this.processor = processor;
+            this.cost = processor;
+            this.memory = memory;
+        }
+
+        @Override
+        public void run() {
+            try {
+                processor.run();
+            } finally {
+                memory.close();
+            }
+        }
+
+        @Override
+        public long getCost() {
+            return cost.getCost();
+        }
+
+        @Override
+        public int getPriority() {
+            return cost.getPriority();
+        }
+    }
+}
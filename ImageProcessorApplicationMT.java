@@ -1,21 +1,23 @@
 package com.kcl.osc.imageprocessor;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import javafx.application.Application;
 import javafx.application.Platform;
-import javafx.scene.image.Image;
 import javafx.stage.Stage;
 
 public class ImageProcessorApplicationMT extends Application {
     /**
      * Change this constant to change the filtering operation. Options are
-     * IDENTITY, EDGE, BLUR, SHARPEN, EMBOSS, GREY
+     * IDENTITY, EDGE, BLUR, SHARPEN, EMBOSS, GREY, BOX:radius, GAUSSIAN:sigma,
+     * MEDIAN:radius, RANK:radius:percentile,
+     * or a comma-separated chain of them applied in turn, e.g. GREY,BLUR,EDGE
      */
     private static final String filter = "EDGE";
 
@@ -32,111 +34,99 @@ public class ImageProcessorApplicationMT extends Application {
     private final int NUMBER_OF_RUN = 5;
 
     /**
-     * The size of the thread pool.
+     * The size of the thread pool: as many images as the ParallelismBudget
+     * has threads can be in progress at once, each filtered on a single thread.
+     * When fewer images remain, they are split between the threads instead.
      */
-    private final int THREAD_POOL_SIZE = 4;
+    private final int THREAD_POOL_SIZE = ParallelismBudget.total();
 
     /**
-     * Filters images by making use of a thread pool.
+     * The number of decoded images that may wait for a thread of the pool.
+     * Images are decoded just in time, this many ahead of the filtering, so memory
+     * does not grow with the number of images in the folder.
+     * Can be changed with the system property imageprocessor.prefetch.
+     */
+    private final int PREFETCH = Math.max(1, Integer.getInteger("imageprocessor.prefetch", THREAD_POOL_SIZE));
+
+    /**
+     * Filters images by making use of a thread pool, in a Pipeline which decodes
+     * the next images and encodes the previous ones while an image is filtered.
      */
     @Override
     public void start(Stage stage) throws Exception{
 
-        // gets the images from the 'img' folder.
-        ArrayList<ImageInfo> images = findImages();
-
         System.out.println("Working.");
+        System.out.println(ParallelismBudget.describe());
+
+        TaskPool threadPool = new TaskPool(THREAD_POOL_SIZE, PREFETCH);
+        // Start the thread pool: its threads wait for tasks to be submitted
+        threadPool.start();
+        Pipeline pipeline = new Pipeline(threadPool);
 
         long time = 0;
         for(int k = 0; k < NUMBER_OF_RUN; k++) {
 
             long startTime = System.nanoTime();
 
-            TaskPool threadPool = new TaskPool(THREAD_POOL_SIZE);
-            // For each image create an ImageProcessorMT and submit it to the thread pool
-            for (int i = 0; i < images.size(); i++) {
-                ImageProcessorMT ip = new ImageProcessorMT(images.get(i).getImage(), filter, saveNewImages, images.get(i).getFilename() + "_filtered.png");
-                threadPool.submit(ip);
+            // Decode, filter and save every image, each stage working on a different image,
+            // while the 'img' folder is walked
+            try (Stream<File> images = findImages()) {
+                pipeline.run(images.iterator(), filter, saveNewImages);
             }
-            // Start the thread pool
-            threadPool.start();
-            // Wait for all tasks in the thread pool to terminate
-            threadPool.join();
 
             long endTime = System.nanoTime();
             time += TimeUnit.MILLISECONDS.convert((endTime-startTime), TimeUnit.NANOSECONDS);
 
+            printParallelism(k, pipeline);
         }
+        threadPool.shutdown();
         System.out.println("Done.");
 
         // Calculating running time
         long averageTime = time / NUMBER_OF_RUN;
         System.out.println("Running time (average of " + NUMBER_OF_RUN + " runs): " + averageTime + "ms");
+        Metrics.dump();
 
         // Kill this application
         Platform.exit();
     }
 
-    // All code below is written by iankenny (taken from the original project).
+    /**
+     * Prints how many threads the images of a run were filtered with.
+     * @param run The number of the run
+     * @param pipeline The pipeline the run went through
+     */
+    private void printParallelism(int run, Pipeline pipeline) {
+        if (pipeline.getMaxParallelism() > 0) {
+            System.out.println("Run " + (run + 1) + ": " + THREAD_POOL_SIZE + " images at once, "
+                    + pipeline.getMinParallelism() + " to " + pipeline.getMaxParallelism() + " threads per image");
+        }
+    }
+
+    // The img folder convention and main() below are by iankenny (taken from the original project);
+    // findImages() has since been rewritten to walk the folder lazily.
 
     /**
      * This method expects all of the images that are to be processed to
      * be in a folder called img that is in the current working directory.
      * In Eclipse, for example, this means the img folder should be in the project
      * folder (alongside src and bin).
-     * @return Info about the images found in the folder.
+     * The folder is walked lazily, as the images are taken from the stream,
+     * and the images are decoded later, by the Pipeline. The stream must be closed.
+     * @return The image files found in the folder and its sub-folders.
      */
-    private ArrayList<ImageProcessorApplicationMT.ImageInfo> findImages() {
-        ArrayList<ImageProcessorApplicationMT.ImageInfo> images = new ArrayList<ImageProcessorApplicationMT.ImageInfo>();
-        Collection<File> files = listFileTree(new File("img"));
-        for (File f: files) {
-            if (f.getName().startsWith(".")) {
-                continue;
-            }
-            Image img = new Image("file:" + f.getPath());
-            ImageProcessorApplicationMT.ImageInfo info = new ImageProcessorApplicationMT.ImageInfo(img, f.getName());
-            images.add(info);
-        }
-        return images;
-    }
-
-    private static Collection<File> listFileTree(File dir) {
-        Set<File> fileTree = new HashSet<File>();
-        if (dir.listFiles() == null)
-            return fileTree;
-        for (File entry : dir.listFiles()) {
-            if (entry.isFile())
-                fileTree.add(entry) /* */;
-            else
-                fileTree.addAll(listFileTree(entry));
+    private Stream<File> findImages() throws IOException {
+        Path folder = Paths.get("img");
+        if (!Files.isDirectory(folder)) {
+            return Stream.empty();
         }
-        return fileTree;
+        return Files.walk(folder)
+                .filter(Files::isRegularFile)
+                .map(Path::toFile)
+                .filter(f -> !f.getName().startsWith("."));
     }
 
     public static void main(String[] args) {
         launch(args);
     }
-
-    /**
-     * Simply class to hold an Image and its filename.
-     * @author iankenny
-     *
-     */
-    private static class ImageInfo {
-        private Image image;
-        private String filename;
-
-        public ImageInfo(Image image, String filename) {
-            this.image = image;
-            this.filename = filename;
-        }
-
-        public Image getImage() {
-            return image;
-        }
-
-        public String getFilename() {
-            return filename;
-        }
-    }
 }
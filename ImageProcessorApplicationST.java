@@ -1,11 +1,13 @@
 package com.kcl.osc.imageprocessor;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -16,7 +18,8 @@ public class ImageProcessorApplicationST extends Application {
 	
 	/**
 	 * Change this constant to change the filtering operation. Options are
-	 * IDENTITY, EDGE, BLUR, SHARPEN, EMBOSS, EDGE, GREY
+	 * IDENTITY, EDGE, BLUR, SHARPEN, EMBOSS, EDGE, GREY, BOX:radius, GAUSSIAN:sigma,
+	 * MEDIAN:radius, RANK:radius:percentile
 	 */
 	private static final String filter = "EDGE";
 	
@@ -31,19 +34,28 @@ public class ImageProcessorApplicationST extends Application {
 	@Override
     public void start(Stage stage) throws Exception{
 		
-		// gets the images from the 'img' folder.
-		ArrayList<ImageInfo> images = findImages();
-
     	System.out.println("Working.");
 
 		long time = 0;
 		for(int k = 0; k < NUMBER_OF_RUN; k++) {
 			long startTime = System.nanoTime();
 
-			// for each image creates and runs an ImageProcessor to process the image.
-			for (int i = 0; i < images.size(); i++) {
-				ImageProcessorST ip = new ImageProcessorST(images.get(i).getImage(), filter, saveNewImages, images.get(i).getFilename() + "_filtered.png");
-				ip.run();
+			// for each image in the 'img' folder, decodes it just in time,
+			// then creates and runs an ImageProcessor to process the image.
+			try (Stream<File> images = findImages()) {
+				for (Iterator<File> it = images.iterator(); it.hasNext(); ) {
+					File f = it.next();
+					long decodeStart = System.nanoTime();
+					Image img = new Image("file:" + f.getPath());
+					Metrics.record(Metrics.Stage.DECODE, decodeStart);
+					if (img.isError()) {
+						Metrics.error(Metrics.Stage.DECODE);
+						System.out.println("Could not decode " + f + ": " + img.getException());
+						continue;
+					}
+					ImageProcessorST ip = new ImageProcessorST(img, filter, saveNewImages, f.getName() + "_filtered.png");
+					ip.run();
+				}
 			}
 			long endTime = System.nanoTime();
 			time += TimeUnit.MILLISECONDS.convert((endTime-startTime), TimeUnit.NANOSECONDS);
@@ -54,69 +66,36 @@ public class ImageProcessorApplicationST extends Application {
 		// Calculating running time
 		long averageTime = time / NUMBER_OF_RUN;
 		System.out.println("Running time (average of " + NUMBER_OF_RUN + " runs): " + averageTime + "ms");
+		Metrics.dump();
     	
     	// Kill this application
 		Platform.exit();
     }
 
+	// The img folder convention and main() below are by iankenny (taken from the original project);
+	// findImages() has since been rewritten to walk the folder lazily, and its ImageInfo holder class removed.
+
 	/**
 	 * This method expects all of the images that are to be processed to 
 	 * be in a folder called img that is in the current working directory.
 	 * In Eclipse, for example, this means the img folder should be in the project
 	 * folder (alongside src and bin).
-	 * @return Info about the images found in the folder.
+	 * The folder is walked lazily, as the images are taken from the stream,
+	 * which must be closed.
+	 * @return The image files found in the folder and its sub-folders.
 	 */
-	private ArrayList<ImageInfo> findImages() {
-		ArrayList<ImageInfo> images = new ArrayList<ImageInfo>();
-		Collection<File> files = listFileTree(new File("img"));
-		for (File f: files) {
-			if (f.getName().startsWith(".")) {
-				continue;
-			}
-			Image img = new Image("file:" + f.getPath());
-			ImageInfo info = new ImageInfo(img, f.getName());
-			images.add(info);
-		}
-		return images;
-	}
-
-	private static Collection<File> listFileTree(File dir) {
-		Set<File> fileTree = new HashSet<File>();
-		if (dir.listFiles() == null)
-			return fileTree;
-		for (File entry : dir.listFiles()) {
-			if (entry.isFile())
-				fileTree.add(entry) /* */;
-			else
-				fileTree.addAll(listFileTree(entry));
+	private Stream<File> findImages() throws IOException {
+		Path folder = Paths.get("img");
+		if (!Files.isDirectory(folder)) {
+			return Stream.empty();
 		}
-		return fileTree;
+		return Files.walk(folder)
+				.filter(Files::isRegularFile)
+				.map(Path::toFile)
+				.filter(f -> !f.getName().startsWith("."));
 	}
 
 	public static void main(String[] args) {
         launch(args);
     }
-	
-	/**
-	 * Simply class to hold an Image and its filename.
-	 * @author iankenny
-	 *
-	 */
-	private static class ImageInfo {
-		private Image image;
-		private String filename;
-		
-		public ImageInfo(Image image, String filename) {
-			this.image = image;
-			this.filename = filename;
-		}
-		
-		public Image getImage() {
-			return image;
-		}
-
-		public String getFilename() {
-			return filename;
-		}
-	}
 }
@@ -0,0 +1,228 @@
+package com.kcl.osc.imageprocessor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+
+/**
+ * The headless version of ImageProcessorMT: it filters a BufferedImage
+ * decoded by ImageIO, without the JavaFX runtime.
+ * The pixels are read straight from the image's raster and the result is
+ * saved straight from its PixelBuffer, without any intermediate image.
+ */
+public class ImageProcessorHeadless implements Runnable, Costed {
+
+    private BufferedImage image;
+    private String opfilename;
+    private String filterType;
+    private boolean save;
+
+    // the kernel given by the user, null if filterType names a built-in filter
+    private Kernel customKernel;
+
+    // true if the filtering has ended
+    private volatile boolean ended;
+
+    // the number of threads the filtering was shared between
+    private volatile int parallelism;
+
+    // the priority class of the processor in a TaskPool (see Costed)
+    private int priority;
+
+    // what the kernel sees beyond the edges of the image
+    private BorderMode borderMode = BorderMode.fromSystemProperty();
+
+    /**
+     * Constructor.
+     * @param image The image to process.
+     * @param filter The filter to use.
+     * @param save Whether to save the new image or not.
+     * @param opname The output image filename
+     */
+    public ImageProcessorHeadless(BufferedImage image, String filter, boolean save, String opname) {
+        this.image = image;
+        this.opfilename = opname;
+        this.filterType = filter;
+        this.save = save;
+        ended = false;
+    }
+
+    /**
+     * Constructor for a user-supplied kernel, of any odd width and height.
+     * @param image The image to process.
+     * @param filter The weights of the kernel, row by row.
+     * @param save Whether to save the new image or not.
+     * @param opname The output image filename
+     */
+    public ImageProcessorHeadless(BufferedImage image, float[][] filter, boolean save, String opname) {
+        this(image, "CUSTOM", save, opname);
+        this.customKernel = new Kernel(filter);
+    }
+
+    /**
+     * Runs this image processor.
+     */
+    @Override
+    public void run() {
+        this.filter();
+        ended = true;
+    }
+
+    /**
+     * @return The estimated cost of filtering the image (see Costed)
+     */
+    @Override
+    public long getCost() {
+        long pixels = (long) image.getWidth() * image.getHeight();
+        if (FilterChain.isChain(filterType)) {
+            return Costed.estimate(pixels, FilterChain.create(filterType));
+        }
+        return Costed.estimate(pixels, filterType.equals("GREY") ? null : customKernel != null ? customKernel : Kernel.create(filterType));
+    }
+
+    @Override
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority class of this processor in a TaskPool using the PRIORITY policy.
+     * @param priority The priority class, higher runs first
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Sets what the kernel sees beyond the edges of the image
+     * (by default, the mode named by the system property imageprocessor.border).
+     * @param borderMode The border mode
+     */
+    public void setBorderMode(BorderMode borderMode) {
+        this.borderMode = borderMode;
+    }
+
+    /**
+     * Tells if the filtering has ended or not.
+     * @return true if the task has ended
+     */
+    public boolean hasEnded() {
+        return ended;
+    }
+
+    /**
+     * Tells how many threads the filtering of this image was shared between.
+     * @return the number of threads, or 0 if the filtering has not run yet
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Creates a filtered image and saves it if needed.
+     */
+    private void filter(){
+        long startNanos = System.nanoTime();
+        PixelBuffer pixels = filterImage();
+
+        if (save) {
+            long encodeStart = System.nanoTime();
+            saveNewImage(pixels, opfilename);
+            Metrics.record(Metrics.Stage.ENCODE, encodeStart);
+        }
+        Metrics.imageProcessed((long) pixels.getWidth() * pixels.getHeight(), System.nanoTime() - startNanos);
+        PixelBufferPool.release(pixels);
+    }
+
+    /**
+     * This method filters an image and creates a new filtered pixel data,
+     * splitting the rows of the image into blocks filtered by the threads of the TileScheduler.
+     * @return the filtered image, to be released to the PixelBufferPool
+     */
+    private PixelBuffer filterImage() {
+        if (FilterChain.isChain(filterType)) {
+            return filterChain();
+        }
+        if (filterType.equals("GREY")) {
+            // get image WITHOUT border added
+            long startNanos = System.nanoTime();
+            PixelBuffer pixels = PixelBuffer.of(image);
+            PixelBuffer outputPixels = PixelBufferPool.borrow(pixels.getWidth(), pixels.getHeight());
+            startNanos = Metrics.record(Metrics.Stage.EXTRACT, startNanos);
+
+            parallelism = TileScheduler.run(0, pixels.getHeight(), pixels.getWidth(),
+                    (start, end) -> GreyscaleWorker.create(pixels, start, end, outputPixels));
+            Metrics.record(Metrics.Stage.FILTER, startNanos);
+
+            return outputPixels;
+        }
+
+        // Create filter
+        Kernel kernel = customKernel != null ? customKernel : Kernel.create(filterType);
+        if(kernel == null) {
+            System.out.println("Invalid filterType was given: " + filterType);
+            Metrics.error(Metrics.Stage.FILTER);
+            PixelBuffer pixels = PixelBufferPool.borrow(image.getWidth(), image.getHeight());
+            PixelBuffer.readPixels(image, pixels.getPixels(), 0, pixels.getWidth());
+            return pixels;
+        }
+
+        // get image WITHOUT border added: the edges are handled in place
+        long startNanos = System.nanoTime();
+        PixelBuffer pixels = PixelBuffer.of(image);
+        PixelBuffer outputPixels = PixelBufferPool.borrow(pixels.getWidth(), pixels.getHeight());
+        startNanos = Metrics.record(Metrics.Stage.EXTRACT, startNanos);
+
+        parallelism = TileScheduler.run(0, pixels.getHeight(), pixels.getWidth(),
+                ParallelismBudget.threadsPerImage(), kernel.getBlockRows(pixels),
+                (start, end) -> kernel.createWorker(pixels, start, end, outputPixels, borderMode));
+        Metrics.record(Metrics.Stage.FILTER, startNanos);
+
+        return outputPixels;
+    }
+
+    /**
+     * Filters the image with a chain of filters, fused in a single pass (see FilterChain).
+     * @return the filtered image, to be released to the PixelBufferPool
+     */
+    private PixelBuffer filterChain() {
+        FilterChain chain = FilterChain.create(filterType);
+        if (chain == null) {
+            System.out.println("Invalid filterType was given: " + filterType);
+            Metrics.error(Metrics.Stage.FILTER);
+            PixelBuffer pixels = PixelBufferPool.borrow(image.getWidth(), image.getHeight());
+            PixelBuffer.readPixels(image, pixels.getPixels(), 0, pixels.getWidth());
+            return pixels;
+        }
+
+        long startNanos = System.nanoTime();
+        PixelBuffer pixels = PixelBuffer.of(image);
+        PixelBuffer outputPixels = PixelBufferPool.borrow(pixels.getWidth(), pixels.getHeight());
+        startNanos = Metrics.record(Metrics.Stage.EXTRACT, startNanos);
+
+        parallelism = TileScheduler.run(0, pixels.getHeight(), pixels.getWidth(),
+                (start, end) -> chain.createWorker(pixels, start, end, outputPixels, borderMode));
+        Metrics.record(Metrics.Stage.FILTER, startNanos);
+
+        return outputPixels;
+    }
+
+    /**
+     * Saves the pixel data in the parameter as a new image file.
+     * @param pixels The pixel data.
+     * @param filename The output filename.
+     */
+    private void saveNewImage(PixelBuffer pixels, String filename) {
+        File newFile = new File(filename);
+
+        try {
+            // The file may be a hard link to a ResultCache entry: replace it rather than write through it
+            Files.deleteIfExists(newFile.toPath());
+            ImageIO.write(pixels.toBufferedImage(), "png", newFile);
+        } catch (Exception e) {
+            Metrics.error(Metrics.Stage.ENCODE);
+            System.out.println("Could not save " + filename + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,29 +1,40 @@
 package com.kcl.osc.imageprocessor;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.util.function.Consumer;
 import javax.imageio.ImageIO;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelReader;
-import javafx.scene.image.PixelWriter;
-import javafx.scene.image.WritableImage;
-import javafx.scene.paint.Color;
 
-public class ImageProcessorMT implements Runnable {
+public class ImageProcessorMT implements Runnable, Costed {
 
     private Image image;
     private String opfilename;
     private String filterType;
     private boolean save;
 
+    // the kernel given by the user, null if filterType names a built-in filter
+    private Kernel customKernel;
+
     // true if the filtering has ended
-    private boolean ended;
+    private volatile boolean ended;
 
-    /**
-     * The number of threads that will filter the image:
-     * that is the number of 'slices' of the image
-     */
-    private static final int NUM_THREADS = 4;
+    // the number of threads the filtering was shared between
+    private volatile int parallelism;
+
+    // the stage the filtered image is handed to for saving, null to save it on the filtering thread
+    private Consumer<PixelBuffer> saver;
+
+    // the priority class of the processor in a TaskPool (see Costed)
+    private int priority;
+
+    // true if the image may be split between several threads
+    private boolean split = true;
+
+    // what the kernel sees beyond the edges of the image
+    private BorderMode borderMode = BorderMode.fromSystemProperty();
 
     /**
      * Constructor.
@@ -40,6 +51,18 @@ public class ImageProcessorMT implements Runnable {
         ended = false;
     }
 
+    /**
+     * Constructor for a user-supplied kernel, of any odd width and height.
+     * @param image The image to process.
+     * @param filter The weights of the kernel, row by row.
+     * @param save Whether to save the new image or not.
+     * @param opname The output image filename
+     */
+    public ImageProcessorMT(Image image, float[][] filter, boolean save, String opname) {
+        this(image, "CUSTOM", save, opname);
+        this.customKernel = new Kernel(filter);
+    }
+
     /**
      * Runs this image processor.
      */
@@ -49,6 +72,31 @@ public class ImageProcessorMT implements Runnable {
         ended = true;
     }
 
+    /**
+     * @return The estimated cost of filtering the image (see Costed)
+     */
+    @Override
+    public long getCost() {
+        long pixels = (long) image.getWidth() * (long) image.getHeight();
+        if (FilterChain.isChain(filterType)) {
+            return Costed.estimate(pixels, FilterChain.create(filterType));
+        }
+        return Costed.estimate(pixels, filterType.equals("GREY") ? null : createKernel());
+    }
+
+    @Override
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority class of this processor in a TaskPool using the PRIORITY policy.
+     * @param priority The priority class, higher runs first
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     /**
      * Tells if the filtering has ended or not.
      * @return true if the task has ended
@@ -58,204 +106,190 @@ public class ImageProcessorMT implements Runnable {
     }
 
     /**
-     * Creates a filtered image and saves it if needed.
+     * Tells how many threads the filtering of this image was shared between,
+     * as decided by the ParallelismBudget when the filtering started.
+     * @return the number of threads, or 0 if the filtering has not run yet
      */
-    private void filter(){
-        Color[][] pixels = filterImage();
-
-        if (save) {
-            saveNewImage(pixels, opfilename);
-        }
+    public int getParallelism() {
+        return parallelism;
     }
 
     /**
-     * This method filters an image and creates a new filtered pixel data.
-     * It parallelises the filtering by ‘slicing’ the image data in NUM_THREADS slices,
-     * and giving each slice to a thread to work on.
-     *
-     * (If NUM_THREADS exceeds the number of rows of the image,
-     * only 1 thread will execute the filtering.)
-     * @return the filtered image
+     * Tells whether the image may be split into blocks filtered by several threads.
+     * Small images are filtered faster whole, on the calling thread (see ImageBatch).
+     * @param split false to filter the image on the calling thread only
      */
-    private Color[][] filterImage() {
-        // Create the threads
-        Worker[] workers = new Worker[NUM_THREADS];
-        Thread[] threads = new Thread[NUM_THREADS];
-
-        Color[][] pixels = null;
-        Color[][] outputPixels = null;
-
-        if (filterType.equals("GREY")) {
-            // get image WITHOUT border added
-            pixels = getPixelData();
-            outputPixels = new Color[pixels.length][pixels.length];
-
-            // Create the threads
-            if(pixels.length % NUM_THREADS == 0) {
-
-                // Splits well into equal number of rows
-                int numberOfRows = pixels.length / NUM_THREADS;
-
-                for(int i = 0; i < NUM_THREADS; i++) {
-                    workers[i] = new GreyscaleWorker(pixels, i*numberOfRows, i*numberOfRows + numberOfRows, outputPixels);
-                    threads[i] = new Thread(workers[i]);
-                }
-
-            } else {
+    public void setSplit(boolean split) {
+        this.split = split;
+    }
 
-                // Does NOT split into equal number of rows
-                int bonusRowsForLastThread = pixels.length % NUM_THREADS;
-                int numberOfRows = (pixels.length - bonusRowsForLastThread) / NUM_THREADS;
+    /**
+     * Sets what the kernel sees beyond the edges of the image
+     * (by default, the mode named by the system property imageprocessor.border).
+     * @param borderMode The border mode
+     */
+    public void setBorderMode(BorderMode borderMode) {
+        this.borderMode = borderMode;
+    }
 
-                for(int i = 0; i < NUM_THREADS - 1; i++) {
-                    workers[i] = new GreyscaleWorker(pixels, i*numberOfRows, i*numberOfRows + numberOfRows, outputPixels);
-                    threads[i] = new Thread(workers[i]);
-                }
+    /**
+     * Hands the filtered image to another stage to be saved (see Pipeline),
+     * so that the filtering thread moves on to the next image rather than encoding this one.
+     * @param saver Saves the filtered image to the output filename
+     */
+    public void setSaver(Consumer<PixelBuffer> saver) {
+        this.saver = saver;
+    }
 
-                // Special case: the last thread takes more rows than other threads
-                workers[NUM_THREADS - 1] = new GreyscaleWorker(pixels, (NUM_THREADS - 1)*numberOfRows, (NUM_THREADS - 1)*numberOfRows + numberOfRows + bonusRowsForLastThread, outputPixels);
-                threads[NUM_THREADS - 1] = new Thread(workers[NUM_THREADS - 1]);
+    /**
+     * Creates a filtered image and saves it if needed.
+     */
+    private void filter(){
+        long startNanos = System.nanoTime();
+        PixelBuffer pixels = filterImage();
 
-            }
+        long pixelCount = (long) pixels.getWidth() * pixels.getHeight();
+        if (save && saver != null) {
+            // The saver releases the buffer once saved
+            saver.accept(pixels);
         } else {
-            // get image WITH border added
-            pixels = getPixelDataExtended();
-            outputPixels = new Color[pixels.length - 2][pixels.length - 2];
-
-            // Create filter
-            float[][] filter = createFilter(filterType);
-            if(filter == null) {
-                System.out.println("Invalid filterType was given: " + filterType);
-                return getPixelData();
+            if (save) {
+                long encodeStart = System.nanoTime();
+                saveNewImage(pixels, opfilename);
+                Metrics.record(Metrics.Stage.ENCODE, encodeStart);
             }
+            PixelBufferPool.release(pixels);
+        }
+        Metrics.imageProcessed(pixelCount, System.nanoTime() - startNanos);
+    }
 
-            // Create the threads
-            if(outputPixels.length % NUM_THREADS == 0) {
+    /**
+     * This method filters an image and creates a new filtered pixel data.
+     * It parallelises the filtering by splitting the rows of the image into blocks,
+     * which are filtered by the threads of the shared TileScheduler.
+     * The number of blocks depends on how many images share the ParallelismBudget.
+     * The buffers are borrowed from the PixelBufferPool.
+     * @return the filtered image, to be released to the PixelBufferPool
+     */
+    private PixelBuffer filterImage() {
+        if (FilterChain.isChain(filterType)) {
+            return filterChain();
+        }
+        if (filterType.equals("GREY")) {
+            // get image WITHOUT border added
+            long startNanos = System.nanoTime();
+            PixelBuffer pixels = getPixelData();
+            PixelBuffer outputPixels = PixelBufferPool.borrow(pixels.getWidth(), pixels.getHeight());
+            startNanos = Metrics.record(Metrics.Stage.EXTRACT, startNanos);
 
-                // Splits well into equal number of rows
-                int numberOfRows = outputPixels.length / NUM_THREADS;
+            parallelism = TileScheduler.run(0, pixels.getHeight(), pixels.getWidth(), threads(),
+                    (start, end) -> GreyscaleWorker.create(pixels, start, end, outputPixels));
+            Metrics.record(Metrics.Stage.FILTER, startNanos);
+            PixelBufferPool.release(pixels);
 
-                for(int i = 0; i < NUM_THREADS; i++) {
-                    workers[i] = new FilterWorker(pixels, i*numberOfRows + 1, i*numberOfRows + numberOfRows + 1, outputPixels, filter);
-                    threads[i] = new Thread(workers[i]);
-                }
+            return outputPixels;
+        }
 
-            } else {
+        // Create filter
+        Kernel kernel = createKernel();
+        if(kernel == null) {
+            System.out.println("Invalid filterType was given: " + filterType);
+            Metrics.error(Metrics.Stage.FILTER);
+            return getPixelData();
+        }
 
-                // Does NOT split into equal number of rows
-                int bonusRowsForLastThread = outputPixels.length % NUM_THREADS;
-                int numberOfRows = (outputPixels.length - bonusRowsForLastThread) / NUM_THREADS;
+        // get image WITHOUT border added: the edges are handled in place
+        long startNanos = System.nanoTime();
+        PixelBuffer pixels = getPixelData();
+        PixelBuffer outputPixels = PixelBufferPool.borrow(pixels.getWidth(), pixels.getHeight());
+        startNanos = Metrics.record(Metrics.Stage.EXTRACT, startNanos);
 
-                for(int i = 0; i < NUM_THREADS - 1; i++) {
-                    workers[i] = new FilterWorker(pixels, i*numberOfRows + 1, i*numberOfRows + numberOfRows + 1, outputPixels, filter);
-                    threads[i] = new Thread(workers[i]);
-                }
+        parallelism = TileScheduler.run(0, pixels.getHeight(), pixels.getWidth(), threads(),
+                kernel.getBlockRows(pixels),
+                (start, end) -> kernel.createWorker(pixels, start, end, outputPixels, borderMode));
+        Metrics.record(Metrics.Stage.FILTER, startNanos);
+        PixelBufferPool.release(pixels);
 
-                // Special case: the last thread takes more rows than other threads
-                workers[NUM_THREADS - 1] = new FilterWorker(pixels, (NUM_THREADS - 1)*numberOfRows + 1, (NUM_THREADS - 1)*numberOfRows + numberOfRows + bonusRowsForLastThread + 1, outputPixels, filter);
-                threads[NUM_THREADS - 1] = new Thread(workers[NUM_THREADS - 1]);
+        return outputPixels;
+    }
 
-            }
+    /**
+     * Filters the image with a chain of filters, fused in a single pass (see FilterChain),
+     * splitting the rows between threads like a single filter.
+     * @return the filtered image, to be released to the PixelBufferPool
+     */
+    private PixelBuffer filterChain() {
+        FilterChain chain = FilterChain.create(filterType);
+        if (chain == null) {
+            System.out.println("Invalid filterType was given: " + filterType);
+            Metrics.error(Metrics.Stage.FILTER);
+            return getPixelData();
         }
 
-        for (int i = 0; i < NUM_THREADS; i++) {
-            threads[i].start();
-        }
+        long startNanos = System.nanoTime();
+        PixelBuffer pixels = getPixelData();
+        PixelBuffer outputPixels = PixelBufferPool.borrow(pixels.getWidth(), pixels.getHeight());
+        startNanos = Metrics.record(Metrics.Stage.EXTRACT, startNanos);
 
-        for (int i = 0; i < NUM_THREADS; i++) {
-            try {
-                threads[i].join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        parallelism = TileScheduler.run(0, pixels.getHeight(), pixels.getWidth(), threads(),
+                (start, end) -> chain.createWorker(pixels, start, end, outputPixels, borderMode));
+        Metrics.record(Metrics.Stage.FILTER, startNanos);
+        PixelBufferPool.release(pixels);
 
         return outputPixels;
     }
 
     /**
-     * Creates the filter.
-     * Returns null if there is no match with the given filter type.
-     * @param filterType The type of filter required.
-     * @return The filter.
+     * @return The number of threads the image may be split between
      */
-    private float[][] createFilter(String filterType) {
-        filterType = filterType.toUpperCase();
-
-        if (filterType.equals("IDENTITY")) {
-            return (new float[][] {{0,0,0},{0,1,0},{0,0,0}});
-        } else if (filterType.equals("BLUR")) {
-            return (new float[][] {{0.0625f,0.125f,0.0625f},{0.125f,0.25f,0.125f},{0.0625f,0.125f,0.0625f}});
-        } else if (filterType.equals("SHARPEN")) {
-            return (new float[][] {{0,-1,0},{-1,5,-1},{0,-1,0}});
-        } else if (filterType.equals("EDGE")) {
-            return (new float[][] {{-1,-1,-1},{-1,8,-1},{-1,-1,-1}});
-        } else if (filterType.equals("EMBOSS")) {
-            return (new float[][] {{-2,-1,0},{-1,0,1},{0,1,2}});
+    private int threads() {
+        return split ? ParallelismBudget.threadsPerImage() : 1;
+    }
+
+    /**
+     * Creates the kernel: either the user's kernel or the built-in filter named by filterType.
+     * Returns null if there is no match with the filter type.
+     * @return The kernel.
+     */
+    private Kernel createKernel() {
+        if (customKernel != null) {
+            return customKernel;
         }
-        return null;
+        return Kernel.create(filterType);
     }
 
     /**
      * Saves the pixel data in the parameter as a new image file.
      * @param pixels The pixel data.
      * @param filename The output filename.
+     * @return true if the image was saved
      */
-    private void saveNewImage(Color[][] pixels, String filename) {
-        WritableImage wimg = new WritableImage(image.getPixelReader(), (int) image.getWidth(), (int) image.getHeight());
-
-        PixelWriter pw = wimg.getPixelWriter();
-        for (int i = 0; i < wimg.getHeight(); i++) {
-            for (int j = 0; j < wimg.getWidth(); j++) {
-                pw.setColor(i, j, pixels[i][j]);
-            }
-        }
-
+    static boolean saveNewImage(PixelBuffer pixels, String filename) {
         File newFile = new File(filename);
 
         try {
-            ImageIO.write(SwingFXUtils.fromFXImage(wimg, null), "png", newFile);
-        } catch (Exception s) {
+            // The file may be a hard link to a ResultCache entry: replace it rather than write through it
+            Files.deleteIfExists(newFile.toPath());
+            return ImageIO.write(pixels.toBufferedImage(), "png", newFile);
+        } catch (Exception e) {
+            Metrics.error(Metrics.Stage.ENCODE);
+            System.out.println("Could not save " + filename + ": " + e.getMessage());
+            return false;
         }
     }
 
     /**
      * Gets the pixel data from the image but does
      * NOT add a border.
-     * @return The pixel data.
+     * @return The pixel data, borrowed from the PixelBufferPool.
      */
-    private Color[][] getPixelData() {
+    PixelBuffer getPixelData() {
         PixelReader pr = image.getPixelReader();
-        Color[][] pixels = new Color[(int) image.getWidth()][(int) image.getHeight()];
-        for (int i = 0; i < image.getWidth(); i++) {
-            for (int j = 0; j < image.getHeight(); j++) {
-                pixels[i][j] = pr.getColor(i, j);
-            }
-        }
-
-        return pixels;
-    }
-
-    /**
-     * Gets the pixel data from the image but with a one-pixel border added.
-     * @return The pixel data.
-     */
-    private Color[][] getPixelDataExtended() {
-        PixelReader pr = image.getPixelReader();
-        Color[][] pixels = new Color[(int) image.getWidth() + 2][(int) image.getHeight() + 2];
-
-        for (int i = 0; i < pixels.length; i++) {
-            for (int j = 0; j < pixels.length; j++) {
-                pixels[i][j] = new Color(0.5, 0.5, 0.5, 1.0);
-            }
-        }
-
-        for (int i = 0; i < image.getWidth(); i++) {
-            for (int j = 0; j < image.getHeight(); j++) {
-                pixels[i + 1][j + 1] = pr.getColor(i, j);
-            }
-        }
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        PixelBuffer pixels = PixelBufferPool.borrow(width, height);
+        pr.getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels.getPixels(), 0, width);
 
         return pixels;
     }
-}
\ No newline at end of file
+}
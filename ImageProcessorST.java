@@ -1,13 +1,11 @@
 package com.kcl.osc.imageprocessor;
 
 import java.io.File;
+import java.nio.file.Files;
 import javax.imageio.ImageIO;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelReader;
-import javafx.scene.image.PixelWriter;
-import javafx.scene.image.WritableImage;
-import javafx.scene.paint.Color;
 
 public class ImageProcessorST {
 
@@ -16,6 +14,12 @@ public class ImageProcessorST {
 	private String filterType;
 	private boolean save;
 
+	// the kernel given by the user, null if filterType names a built-in filter
+	private Kernel customKernel;
+
+	// what the kernel sees beyond the edges of the image
+	private BorderMode borderMode = BorderMode.fromSystemProperty();
+
 	/**
 	 * Constructor.
 	 * @param image The image to process.
@@ -31,6 +35,27 @@ public class ImageProcessorST {
 		this.save = save;		
 	}
 
+	/**
+	 * Constructor for a user-supplied kernel, of any odd width and height.
+	 * @param image The image to process.
+	 * @param filter The weights of the kernel, row by row.
+	 * @param save Whether to save the new image or not.
+	 * @param opname The output image filename
+	 */
+	public ImageProcessorST(Image image, float[][] filter, boolean save, String opname) {
+		this(image, "CUSTOM", save, opname);
+		this.customKernel = new Kernel(filter);
+	}
+
+	/**
+	 * Sets what the kernel sees beyond the edges of the image
+	 * (by default, the mode named by the system property imageprocessor.border).
+	 * @param borderMode The border mode
+	 */
+	public void setBorderMode(BorderMode borderMode) {
+		this.borderMode = borderMode;
+	}
+
 	/**
 	 * Runs this image processor.
 	 */
@@ -45,17 +70,18 @@ public class ImageProcessorST {
 	 * calls appropriate methods to create the new, filtered pixel data.
 	 * @return the filtered image
 	 */
-	private Color[][] filterImage() {
+	private PixelBuffer filterImage() {
 
 		if (filterType.equals("GREY")) {
 			return applyGreyscale();
 		}
 
-		Color[][] pixels = getPixelDataExtended();
+		Kernel kernel = createKernel();
 
-		float[][] filter = createFilter(filterType);
+		PixelBuffer pixels = getPixelData();
 
-		Color[][] filteredImage = applyFilter(pixels, filter);
+		PixelBuffer filteredImage = applyFilter(pixels, kernel);
+		PixelBufferPool.release(pixels);
 
 		return filteredImage;
 	}
@@ -65,93 +91,52 @@ public class ImageProcessorST {
 	 * Applies the greyscale operation.
 	 * @return the new pixel data.
 	 */
-	private Color[][] applyGreyscale() {
-
-		Color[][] inputPixels = getPixelData();
-		Color[][] outputPixels = new Color[inputPixels.length][inputPixels.length];
-
-		for (int i = 0; i < (inputPixels.length);i++) {
-			for (int j = 0; j < (inputPixels[0].length); j++) {
+	private PixelBuffer applyGreyscale() {
 
-				double red = inputPixels[i][j].getRed();
-				double green = inputPixels[i][j].getGreen();
-				double blue = inputPixels[i][j].getBlue();
+		PixelBuffer inputPixels = getPixelData();
+		PixelBuffer outputPixels = PixelBufferPool.borrow(inputPixels.getWidth(), inputPixels.getHeight());
 
-				double newRGB = (red + green + blue) / 3;
-				newRGB = clampRGB(newRGB);
-
-				Color newPixel = new Color(newRGB, newRGB, newRGB, 1.0);                
-				outputPixels[i][j] = newPixel;
-			}
-		}
+		GreyscaleWorker.create(inputPixels, 0, inputPixels.getHeight(), outputPixels).run();
+		PixelBufferPool.release(inputPixels);
 
 		return outputPixels;
 	}
 
 	/**
 	 * Applies the required filter to the input pixel data.
-	 * @param pixels The input pixel data.
-	 * @param filter The filter.
+	 * @param pixels The input pixel data, without a border: the edges are handled in place.
+	 * @param kernel The filter.
 	 * @return The new, filtered pixel data.
 	 */
-	private Color[][] applyFilter(Color[][] pixels, float[][] filter) {
-
-		Color[][] finalImage = new Color[pixels.length - 2][pixels[0].length - 2];
-
-		for (int i = 1; i < pixels.length -1; i++) {
-			for (int j = 1; j < pixels[i].length -1; j++) {
-
-				double red = 0.0;
-				double green = 0.0;
-				double blue = 0.0;
-
-				for (int k = -1; k < filter.length - 1; k++) {
-					for (int l = -1; l < filter[0].length - 1; l++) {
-						red += pixels[i + k][j + l].getRed() * filter[1 + k][1 + l];
-						green += pixels[i + k][j + l].getGreen() * filter[1 + k][1 + l];
-						blue += pixels[i + k][j + l].getBlue() * filter[1 + k][1 + l];
-					}
-				}
-
-				red = clampRGB(red);
-				green = clampRGB(green);
-				blue = clampRGB(blue);
-				finalImage[i - 1][j - 1] = new Color(red,green,blue,1.0);
-			}
-		}
+	private PixelBuffer applyFilter(PixelBuffer pixels, Kernel kernel) {
+
+		PixelBuffer finalImage = PixelBufferPool.borrow(pixels.getWidth(), pixels.getHeight());
+
+		kernel.createWorker(pixels, 0, pixels.getHeight(), finalImage, borderMode).run();
 		
 		return finalImage;
 	}
 
 	private void filter() {
 
-		Color[][] pixels = filterImage();
+		PixelBuffer pixels = filterImage();
 
 		if (save) {
 			saveNewImage(pixels, opfilename);
 		}
+		PixelBufferPool.release(pixels);
 	}
 
 	/**
-	 * Creates the filter.
-	 * @param filterType The type of filter required.
-	 * @return The filter.
+	 * Creates the kernel: either the user's kernel or the built-in filter named by filterType.
+	 * Returns null if there is no match with the filter type.
+	 * @return The kernel.
 	 */
-	private float[][] createFilter(String filterType) {
-		filterType = filterType.toUpperCase();
-		
-		if (filterType.equals("IDENTITY")) {
-			return (new float[][] {{0,0,0},{0,1,0},{0,0,0}});
-		} else if (filterType.equals("BLUR")) {
-			return (new float[][] {{0.0625f,0.125f,0.0625f},{0.125f,0.25f,0.125f},{0.0625f,0.125f,0.0625f}});
-		} else if (filterType.equals("SHARPEN")) {
-			return (new float[][] {{0,-1,0},{-1,5,-1},{0,-1,0}});
-		} else if (filterType.equals("EDGE")) {
-			return (new float[][] {{-1,-1,-1},{-1,8,-1},{-1,-1,-1}});
-		} else if (filterType.equals("EMBOSS")) {
-			return (new float[][] {{-2,-1,0},{-1,0,1},{0,1,2}});
+	private Kernel createKernel() {
+		if (customKernel != null) {
+			return customKernel;
 		}
-		return null;
+		return Kernel.create(filterType);
 	}
 
 	/**
@@ -159,76 +144,30 @@ public class ImageProcessorST {
 	 * @param pixels The pixel data.
 	 * @param filename The output filename.
 	 */
-	private void saveNewImage(Color[][] pixels, String filename) {
-		WritableImage wimg = new WritableImage(image.getPixelReader(), (int) image.getWidth(), (int) image.getHeight());
-
-		PixelWriter pw = wimg.getPixelWriter();
-		for (int i = 0; i < wimg.getHeight(); i++) {
-			for (int j = 0; j < wimg.getWidth(); j++) {
-				pw.setColor(i, j, pixels[i][j]);
-			}
-		}
-
+	private void saveNewImage(PixelBuffer pixels, String filename) {
 		File newFile = new File(filename);
 
 		try {
-			ImageIO.write(SwingFXUtils.fromFXImage(wimg, null), "png", newFile);
-		} catch (Exception s) {
-		}
-	}
-
-	/**
-	 * This method ensures that the computations on color values have not 
-	 * strayed outside of the range [0,1].
-	 * @param RGBValue the value to clamp.
-	 * @return The clamped value.
-	 */
-	protected static double clampRGB(double RGBValue) {
-		if (RGBValue < 0.0) {
-			return 0.0;
-		} else if (RGBValue > 1.0) {
-			return 1.0;
-		} else {
-			return RGBValue;
+			// The file may be a hard link to a ResultCache entry: replace it rather than write through it
+			Files.deleteIfExists(newFile.toPath());
+			ImageIO.write(pixels.toBufferedImage(), "png", newFile);
+		} catch (Exception e) {
+			Metrics.error(Metrics.Stage.ENCODE);
+			System.out.println("Could not save " + filename + ": " + e.getMessage());
 		}
 	}
 
 	/**
 	 * Gets the pixel data from the image but does
 	 * NOT add a border.
-	 * @return The pixel data.
-	 */
-	private Color[][] getPixelData() {
-		PixelReader pr = image.getPixelReader();
-		Color[][] pixels = new Color[(int) image.getWidth()][(int) image.getHeight()];
-		for (int i = 0; i < image.getWidth(); i++) {
-			for (int j = 0; j < image.getHeight(); j++) {
-				pixels[i][j] = pr.getColor(i, j);
-			}
-		}
-
-		return pixels;
-	}
-
-	/**
-	 * Gets the pixel data from the image but with a one-pixel border added.
-	 * @return The pixel data.
+	 * @return The pixel data, borrowed from the PixelBufferPool.
 	 */
-	private Color[][] getPixelDataExtended() {
+	private PixelBuffer getPixelData() {
 		PixelReader pr = image.getPixelReader();
-		Color[][] pixels = new Color[(int) image.getWidth() + 2][(int) image.getHeight() + 2];
-
-		for (int i = 0; i < pixels.length; i++) {
-			for (int j = 0; j < pixels.length; j++) {
-				pixels[i][j] = new Color(0.5, 0.5, 0.5, 1.0);
-			}
-		}
-
-		for (int i = 0; i < image.getWidth(); i++) {
-			for (int j = 0; j < image.getHeight(); j++) {
-				pixels[i + 1][j + 1] = pr.getColor(i, j);
-			}
-		}
+		int width = (int) image.getWidth();
+		int height = (int) image.getHeight();
+		PixelBuffer pixels = PixelBufferPool.borrow(width, height);
+		pr.getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels.getPixels(), 0, width);
 
 		return pixels;
 	}
@@ -0,0 +1,598 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A convolution kernel (filter), with its row and column factors
+ * when it is separable.
+ *
+ * A box blur, or a cascade of box blurs approximating a Gaussian blur, is kept as
+ * the radii of its boxes rather than as weights, and is applied with running sums
+ * (see BoxBlurWorker) at a cost per pixel that does not depend on its radius.
+ *
+ * A rank filter, such as the median, is not a convolution and has no weights, but is kept
+ * as a Kernel too, as the radius of its square and the rank taken in it, so that it is
+ * applied wherever a kernel is (see RankFilterWorker).
+ */
+public class Kernel {
+
+    /**
+     * Two weights closer than this (relative to the largest weight)
+     * are considered equal when looking for row and column factors.
+     */
+    private static final float SEPARABLE_TOLERANCE = 1e-6f;
+
+    /**
+     * Up to this many weights, a separable kernel is faster applied in one
+     * SIMD or integer pass than in two floating point passes.
+     */
+    private static final int MAX_DIRECT_SEPARABLE_TAPS = 25;
+
+    /**
+     * The largest power of two fixed-point weights may be divided by.
+     */
+    private static final int MAX_FIXED_POINT_SHIFT = 16;
+
+    /**
+     * Whether fixed-point kernels are applied with integer arithmetic,
+     * which can be turned off with -Dimageprocessor.fixedpoint=false.
+     */
+    private static final boolean FIXED_POINT =
+            Boolean.parseBoolean(System.getProperty("imageprocessor.fixedpoint", "true"));
+
+    /**
+     * Whether large kernels may be applied in the frequency domain when that is faster,
+     * which can be turned off with -Dimageprocessor.fft=false.
+     */
+    private static final boolean FFT =
+            Boolean.parseBoolean(System.getProperty("imageprocessor.fft", "true"));
+
+    /**
+     * The number of box blurs a Gaussian blur is approximated with.
+     */
+    private static final int GAUSSIAN_BOXES = 3;
+
+    /**
+     * The largest radius of a box blur, or sum of the radii of a cascade of them.
+     */
+    public static final int MAX_BOX_RADIUS = 4096;
+
+    /**
+     * The largest radius of a rank filter.
+     */
+    public static final int MAX_RANK_RADIUS = 1024;
+
+    /**
+     * The cost per pixel per channel of a rank filter, whatever its radius, in weights
+     * of a convolution: the updates of the coarse and fine histograms of the square.
+     */
+    private static final int RANK_TAPS = 64;
+
+    // null for a cascade of box blurs or a rank filter
+    private final float[][] weights;
+
+    // the radius of each box blur of the cascade, null if the kernel is not one
+    private final int[] boxRadii;
+
+    // the radius of the square of a rank filter, and the index of the value it keeps
+    // in the sorted values of the square; -1 if the kernel is not a rank filter
+    private final int rankRadius;
+    private final int rank;
+
+    // null if the kernel is not separable
+    private final double[] rowWeights;
+    private final double[] columnWeights;
+
+    // weights * 2^fixedPointShift, null if they are not all integers for a small enough shift
+    private final int[][] fixedPointWeights;
+    private final int fixedPointShift;
+
+    // the transforms of the weights the FftFilterWorkers computed, by tile size (see getFftSpectrum())
+    private final ConcurrentHashMap<Long, double[][]> fftSpectra = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * The kernel may have any odd width and height (its centre is the pixel being filtered).
+     * @param weights The weights of the kernel, row by row.
+     */
+    public Kernel(float[][] weights) {
+        if (weights == null || weights.length == 0 || weights.length % 2 == 0) {
+            throw new IllegalArgumentException("A kernel must have an odd number of rows");
+        }
+        for (float[] row : weights) {
+            if (row.length != weights[0].length || row.length % 2 == 0) {
+                throw new IllegalArgumentException("A kernel must have the same odd number of columns in every row");
+            }
+        }
+        this.weights = weights;
+        this.boxRadii = null;
+        this.rankRadius = -1;
+        this.rank = -1;
+
+        double[][] factors = separate(weights);
+        if (factors != null) {
+            columnWeights = factors[0];
+            rowWeights = factors[1];
+        } else {
+            columnWeights = null;
+            rowWeights = null;
+        }
+
+        int shift = findFixedPointShift(weights);
+        if (shift >= 0) {
+            fixedPointShift = shift;
+            fixedPointWeights = new int[weights.length][weights[0].length];
+            for (int i = 0; i < weights.length; i++) {
+                for (int j = 0; j < weights[i].length; j++) {
+                    fixedPointWeights[i][j] = (int) Math.scalb(weights[i][j], shift);
+                }
+            }
+        } else {
+            fixedPointShift = 0;
+            fixedPointWeights = null;
+        }
+    }
+
+    /**
+     * Constructor for a cascade of box blurs, each the mean of a square of pixels.
+     * The row and column weights are the convolution of the boxes.
+     * @param boxRadii The radius of each box
+     */
+    private Kernel(int[] boxRadii) {
+        this.weights = null;
+        this.boxRadii = boxRadii;
+        this.rankRadius = -1;
+        this.rank = -1;
+
+        double[] factor = {1};
+        for (int radius : boxRadii) {
+            // Each weight of the next factor is the mean of 2 * radius + 1 weights of this one
+            int size = 2 * radius + 1;
+            double[] next = new double[factor.length + 2 * radius];
+            double sum = 0;
+            for (int i = 0; i < next.length; i++) {
+                sum += i < factor.length ? factor[i] : 0;
+                sum -= i >= size ? factor[i - size] : 0;
+                next[i] = sum / size;
+            }
+            factor = next;
+        }
+        rowWeights = factor;
+        columnWeights = factor;
+        fixedPointShift = 0;
+        fixedPointWeights = null;
+    }
+
+    /**
+     * Constructor for a rank filter.
+     * @param radius The radius of the square
+     * @param rank The index of the value kept in the sorted values of the square
+     */
+    private Kernel(int radius, int rank) {
+        this.weights = null;
+        this.boxRadii = null;
+        this.rankRadius = radius;
+        this.rank = rank;
+        rowWeights = null;
+        columnWeights = null;
+        fixedPointShift = 0;
+        fixedPointWeights = null;
+    }
+
+    /**
+     * Creates a rank filter: the given percentile of the values of each channel in the
+     * (2 * radius + 1) x (2 * radius + 1) pixels around each pixel. The percentile 50 is
+     * the median filter, 0 the minimum (erosion) and 100 the maximum (dilation).
+     * @param radius The radius of the square
+     * @param percentile The percentile, from 0 to 100
+     * @return The kernel.
+     */
+    public static Kernel rank(int radius, double percentile) {
+        if (radius < 0 || radius > MAX_RANK_RADIUS) {
+            throw new IllegalArgumentException("A rank filter must have a radius from 0 to " + MAX_RANK_RADIUS);
+        }
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("A rank filter must have a percentile from 0 to 100");
+        }
+        int size = (2 * radius + 1) * (2 * radius + 1);
+        return new Kernel(radius, (int) Math.round(percentile / 100 * (size - 1)));
+    }
+
+    /**
+     * Creates a median filter (see rank()).
+     * @param radius The radius of the square
+     * @return The kernel.
+     */
+    public static Kernel median(int radius) {
+        return rank(radius, 50);
+    }
+
+    /**
+     * Creates a box blur: the mean of the (2 * radius + 1) x (2 * radius + 1) pixels around each pixel.
+     * @param radius The radius of the box
+     * @return The kernel.
+     */
+    public static Kernel box(int radius) {
+        if (radius < 0 || radius > MAX_BOX_RADIUS) {
+            throw new IllegalArgumentException("A box blur must have a radius from 0 to " + MAX_BOX_RADIUS);
+        }
+        return new Kernel(new int[] {radius});
+    }
+
+    /**
+     * Creates an approximate Gaussian blur: three box blurs in a row, whose sizes
+     * are chosen so that their variance is as close as possible to sigma^2.
+     * @param sigma The standard deviation of the Gaussian in pixels
+     * @return The kernel.
+     */
+    public static Kernel gaussian(double sigma) {
+        // The radii of the boxes add up to about 3 sigma
+        if (!(sigma > 0) || sigma > MAX_BOX_RADIUS / 3.0) {
+            throw new IllegalArgumentException("A Gaussian blur must have a positive sigma up to " + MAX_BOX_RADIUS / 3);
+        }
+        double variance = 12 * sigma * sigma;
+        int lower = (int) Math.floor(Math.sqrt(variance / GAUSSIAN_BOXES + 1));
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        // The number of boxes of the lower size, the others being 2 pixels larger
+        long count = Math.round((variance - GAUSSIAN_BOXES * (lower * lower + 4 * lower + 3)) / (-4.0 * lower - 4));
+        int[] radii = new int[GAUSSIAN_BOXES];
+        for (int i = 0; i < GAUSSIAN_BOXES; i++) {
+            radii[i] = (i < count ? lower : lower + 2) / 2;
+        }
+        return new Kernel(radii);
+    }
+
+    /**
+     * Creates the kernel of a built-in filter.
+     * Returns null if there is no match with the given filter type.
+     * @param filterType The type of filter required: IDENTITY, BLUR, SHARPEN, EDGE, EMBOSS,
+     *                   BOX:radius (e.g. BOX:10), GAUSSIAN:sigma (e.g. GAUSSIAN:2.5),
+     *                   MEDIAN:radius (e.g. MEDIAN:5) or RANK:radius:percentile (e.g. RANK:2:90).
+     * @return The kernel.
+     */
+    public static Kernel create(String filterType) {
+        filterType = filterType.toUpperCase();
+
+        try {
+            if (filterType.startsWith("BOX:")) {
+                return box(Integer.parseInt(filterType.substring("BOX:".length())));
+            } else if (filterType.startsWith("GAUSSIAN:")) {
+                return gaussian(Double.parseDouble(filterType.substring("GAUSSIAN:".length())));
+            } else if (filterType.startsWith("MEDIAN:")) {
+                return median(Integer.parseInt(filterType.substring("MEDIAN:".length())));
+            } else if (filterType.startsWith("RANK:")) {
+                String[] parameters = filterType.substring("RANK:".length()).split(":");
+                if (parameters.length != 2) {
+                    return null;
+                }
+                return rank(Integer.parseInt(parameters[0]), Double.parseDouble(parameters[1]));
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a number, or out of range
+            return null;
+        }
+
+        if (filterType.equals("IDENTITY")) {
+            return new Kernel(new float[][] {{0,0,0},{0,1,0},{0,0,0}});
+        } else if (filterType.equals("BLUR")) {
+            return new Kernel(new float[][] {{0.0625f,0.125f,0.0625f},{0.125f,0.25f,0.125f},{0.0625f,0.125f,0.0625f}});
+        } else if (filterType.equals("SHARPEN")) {
+            return new Kernel(new float[][] {{0,-1,0},{-1,5,-1},{0,-1,0}});
+        } else if (filterType.equals("EDGE")) {
+            return new Kernel(new float[][] {{-1,-1,-1},{-1,8,-1},{-1,-1,-1}});
+        } else if (filterType.equals("EMBOSS")) {
+            return new Kernel(new float[][] {{-2,-1,0},{-1,0,1},{0,1,2}});
+        }
+        return null;
+    }
+
+    /**
+     * @return The weights of the kernel, row by row (computed on each call for a box blur),
+     *         or null for a rank filter
+     */
+    public float[][] getWeights() {
+        if (weights != null || rankRadius >= 0) {
+            return weights;
+        }
+        float[][] product = new float[columnWeights.length][rowWeights.length];
+        for (int i = 0; i < columnWeights.length; i++) {
+            for (int j = 0; j < rowWeights.length; j++) {
+                product[i][j] = (float) (columnWeights[i] * rowWeights[j]);
+            }
+        }
+        return product;
+    }
+
+    /**
+     * Identifies the kernel by its size and the exact bits of its weights,
+     * e.g. to tell if a result cached for a kernel is valid for another one.
+     * @return A string that differs for any two kernels with different weights
+     */
+    public String getIdentity() {
+        if (rankRadius >= 0) {
+            return "RANK:" + rankRadius + ":" + rank;
+        }
+        if (boxRadii != null) {
+            StringBuilder identity = new StringBuilder("BOX");
+            for (int radius : boxRadii) {
+                identity.append(':').append(radius);
+            }
+            return identity.toString();
+        }
+        StringBuilder identity = new StringBuilder().append(getWidth()).append('x').append(getHeight());
+        for (float[] row : weights) {
+            for (float weight : row) {
+                identity.append(':').append(Integer.toHexString(Float.floatToIntBits(weight)));
+            }
+        }
+        return identity.toString();
+    }
+
+    public int getWidth() {
+        if (rankRadius >= 0) {
+            return 2 * rankRadius + 1;
+        }
+        return weights == null ? rowWeights.length : weights[0].length;
+    }
+
+    public int getHeight() {
+        if (rankRadius >= 0) {
+            return 2 * rankRadius + 1;
+        }
+        return weights == null ? columnWeights.length : weights.length;
+    }
+
+    /**
+     * @return The number of operations per pixel per channel to apply the kernel: one multiply-add per weight,
+     *         an add and a subtract per direction for each box of a box blur, or a constant for a rank filter
+     */
+    public int getTaps() {
+        if (rankRadius >= 0) {
+            return RANK_TAPS;
+        }
+        return boxRadii != null ? 4 * boxRadii.length : getWidth() * getHeight();
+    }
+
+    /**
+     * @return The radius of each box blur of the cascade, or null if the kernel is not a box blur
+     */
+    public int[] getBoxRadii() {
+        return boxRadii;
+    }
+
+    /**
+     * @return The number of columns on each side of the centre of the kernel
+     */
+    public int getRadiusX() {
+        return getWidth() / 2;
+    }
+
+    /**
+     * @return The number of rows on each side of the centre of the kernel
+     */
+    public int getRadiusY() {
+        return getHeight() / 2;
+    }
+
+    /**
+     * Tells if the kernel is the outer product of a column and a row,
+     * in which case it can be applied as a horizontal pass followed by a vertical pass.
+     * @return true if the kernel is separable
+     */
+    public boolean isSeparable() {
+        return rowWeights != null;
+    }
+
+    /**
+     * Returns the transform of the weights for tiles of the given sides, computing it
+     * the first time, so that the workers filtering the parts of an image share it.
+     * @param n The number of rows of a tile
+     * @param m The number of columns of a tile
+     * @return The real and imaginary parts of the transform, which must not be modified
+     */
+    double[][] getFftSpectrum(int n, int m) {
+        return fftSpectra.computeIfAbsent(((long) n << 32) | m, key -> FftFilterWorker.spectrum(getWeights(), n, m));
+    }
+
+    /**
+     * @return The weights of the horizontal pass, or null if the kernel is not separable
+     */
+    public double[] getRowWeights() {
+        return rowWeights;
+    }
+
+    /**
+     * @return The weights of the vertical pass, or null if the kernel is not separable
+     */
+    public double[] getColumnWeights() {
+        return columnWeights;
+    }
+
+    /**
+     * Tells if the kernel can be applied with integer arithmetic: every weight
+     * is an integer divided by the same power of two (as for all the built-in filters),
+     * so the result is exactly the same as with floating point arithmetic.
+     * @return true if the kernel has fixed-point weights
+     */
+    public boolean isFixedPoint() {
+        return fixedPointWeights != null;
+    }
+
+    /**
+     * @return The weights multiplied by 2^getFixedPointShift(), or null if the kernel is not fixed-point
+     */
+    public int[][] getFixedPointWeights() {
+        return fixedPointWeights;
+    }
+
+    /**
+     * @return The power of two the fixed-point weights are divided by
+     */
+    public int getFixedPointShift() {
+        return fixedPointShift;
+    }
+
+    /**
+     * Returns the number of rows the blocks of rows an image is split into (see TileScheduler)
+     * should be a multiple of, for the worker createWorker() picks for it not to redo much work
+     * at the edges of each block: a box blur's horizontal passes cover the radii around a block,
+     * and an FFT filters whole tiles.
+     * @param baseImage The pixels, as given to createWorker()
+     * @return The number of rows, 1 if any block size will do
+     */
+    public int getBlockRows(PixelBuffer baseImage) {
+        if (boxRadii != null) {
+            return BoxBlurWorker.blockRows(boxRadii);
+        }
+        if (usesFft(baseImage)) {
+            return FftFilterWorker.blockRows(this, baseImage);
+        }
+        return 1;
+    }
+
+    /**
+     * Tells if createWorker() applies the kernel in the frequency domain. This is decided
+     * for all the rows baseImage holds, not for the block of rows of a worker, so that all
+     * the blocks of an image are filtered the same way, with the same tiles.
+     * @param baseImage The pixels, as given to createWorker()
+     * @return true if the FftFilterWorker is used
+     */
+    private boolean usesFft(PixelBuffer baseImage) {
+        return FFT && rankRadius < 0 && boxRadii == null
+                && FftFilterWorker.isFaster(this, baseImage.getWidth() - 2 * getRadiusX(),
+                        baseImage.getHeight() - 2 * getRadiusY());
+    }
+
+    /**
+     * Creates the worker that applies this kernel to pixels that already extend the kernel's
+     * radii beyond the part to filter on every side, choosing the fastest implementation for the
+     * kernel and the size of the pixels (the same for every part of them). The pixels around an image are provided by the callers
+     * that extend it themselves (BorderWorker, ChainWorker, BandedFilteredImage); to filter an
+     * image as it is, use createWorker(PixelBuffer, int, int, PixelBuffer, BorderMode).
+     * @param baseImage The pixels, with the kernel's radii of extra columns on each side
+     * @param start The row of baseImage to start filtering from (inclusive), at least the vertical radius
+     * @param end The row of baseImage to end filtering (exclusive), at most its height less the vertical radius
+     * @param result The result image
+     * @return The worker
+     */
+    public Worker createWorker(PixelBuffer baseImage, int start, int end, PixelBuffer result) {
+        if (rankRadius >= 0) {
+            return new RankFilterWorker(baseImage, start, end, result, rankRadius, rank);
+        }
+        if (boxRadii != null) {
+            return new BoxBlurWorker(baseImage, start, end, result, boxRadii);
+        }
+        if (usesFft(baseImage)) {
+            return new FftFilterWorker(baseImage, start, end, result, this);
+        }
+        boolean small = !isSeparable() || getWidth() * getHeight() <= MAX_DIRECT_SEPARABLE_TAPS;
+        if (VectorEngine.isAvailable() && small) {
+            return new VectorFilterWorker(baseImage, start, end, result, weights);
+        }
+        if (FIXED_POINT && isFixedPoint() && small) {
+            return new FixedPointFilterWorker(baseImage, start, end, result, this);
+        }
+        if (isSeparable()) {
+            return new SeparableFilterWorker(baseImage, start, end, result, this);
+        }
+        return new FilterWorker(baseImage, start, end, result, weights);
+    }
+
+    /**
+     * Creates the worker that applies this kernel to a part of an image without a border,
+     * the edges being handled in place with the given border mode (see BorderWorker).
+     * @param baseImage The original image, without any border
+     * @param start The row of the image to start filtering from (inclusive)
+     * @param end The row of the image to end filtering (exclusive)
+     * @param result The result image
+     * @param mode What the kernel sees beyond the edges of the image
+     * @return The worker
+     */
+    public Worker createWorker(PixelBuffer baseImage, int start, int end, PixelBuffer result, BorderMode mode) {
+        return new BorderWorker(this, mode, baseImage, start, end, result);
+    }
+
+    /**
+     * Finds a column and a row whose outer product is the kernel.
+     * The row and column through the largest weight are the only candidates
+     * (up to a scale factor), so it is enough to check those.
+     * @param weights The weights of the kernel.
+     * @return The column and the row, or null if there are none
+     */
+    private static double[][] separate(float[][] weights) {
+        if (weights.length == 1 || weights[0].length == 1) {
+            // Already one-dimensional: one of the factors is just {1}
+            double[] column = new double[weights.length];
+            double[] row = new double[weights[0].length];
+            for (int i = 0; i < column.length; i++) {
+                for (int j = 0; j < row.length; j++) {
+                    column[i] = row.length == 1 ? weights[i][j] : 1;
+                    row[j] = row.length == 1 ? 1 : weights[i][j];
+                }
+            }
+            return new double[][] {column, row};
+        }
+
+        int pivotRow = 0;
+        int pivotColumn = 0;
+        float max = 0;
+        for (int i = 0; i < weights.length; i++) {
+            for (int j = 0; j < weights[i].length; j++) {
+                if (Math.abs(weights[i][j]) > max) {
+                    max = Math.abs(weights[i][j]);
+                    pivotRow = i;
+                    pivotColumn = j;
+                }
+            }
+        }
+        if (max == 0) {
+            return null;
+        }
+
+        double[] column = new double[weights.length];
+        double[] row = new double[weights[0].length];
+        for (int i = 0; i < column.length; i++) {
+            column[i] = weights[i][pivotColumn];
+        }
+        for (int j = 0; j < row.length; j++) {
+            row[j] = (double) weights[pivotRow][j] / weights[pivotRow][pivotColumn];
+        }
+
+        for (int i = 0; i < column.length; i++) {
+            for (int j = 0; j < row.length; j++) {
+                if (Math.abs(column[i] * row[j] - weights[i][j]) > SEPARABLE_TOLERANCE * max) {
+                    return null;
+                }
+            }
+        }
+        return new double[][] {column, row};
+    }
+
+    /**
+     * Finds the smallest shift such that every weight multiplied by 2^shift is an integer,
+     * and the sums of the weighted channels cannot overflow an int.
+     * @param weights The weights of the kernel.
+     * @return The shift, or -1 if there is none
+     */
+    private static int findFixedPointShift(float[][] weights) {
+        for (int shift = 0; shift <= MAX_FIXED_POINT_SHIFT; shift++) {
+            boolean integers = true;
+            double total = 0;
+            for (float[] row : weights) {
+                for (float weight : row) {
+                    float scaled = Math.scalb(weight, shift);
+                    if (scaled != Math.rint(scaled)) {
+                        integers = false;
+                    }
+                    total += Math.abs(scaled);
+                }
+            }
+            if (integers) {
+                return total * 255 < Integer.MAX_VALUE / 2 ? shift : -1;
+            }
+        }
+        return -1;
+    }
+}
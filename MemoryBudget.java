@@ -0,0 +1,249 @@
+package com.kcl.osc.imageprocessor;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The memory the images being filtered may use at the same time, alongside the
+ * ParallelismBudget: the TaskPool bounds how many images are filtered at once,
+ * this bounds how many bytes they hold, so that a few very large images are
+ * filtered one after the other rather than all together and out of memory,
+ * while many small ones still run side by side.
+ *
+ * An image reserves its working set before it is decoded and releases it once encoded.
+ * The budget defaults to half the heap and can be changed with the system property
+ * imageprocessor.memory.bytes. An image whose working set in memory would not fit in
+ * the whole budget is streamed band by band instead (see StreamingImageProcessor).
+ *
+ * Reservations are granted in order, so a large image waiting for room
+ * is not overtaken forever by small ones. A reservation never waits for more
+ * than the whole budget, so an image larger than the budget is granted it once
+ * the images before it are done.
+ */
+public class MemoryBudget {
+
+    private static final long TOTAL = Math.max(1, Long.getLong("imageprocessor.memory.bytes",
+            Runtime.getRuntime().maxMemory() / 2));
+
+    /**
+     * The bytes of one permit of the semaphore, so that the budget fits in an int of permits.
+     */
+    private static final int UNIT = 1024;
+
+    private static final int TOTAL_UNITS = (int) Math.min(Integer.MAX_VALUE, (TOTAL + UNIT - 1) / UNIT);
+
+    private static final Semaphore permits = new Semaphore(TOTAL_UNITS, true);
+
+    // bytes currently reserved, and the most ever reserved at once
+    private static final AtomicLong reserved = new AtomicLong();
+    private static final AtomicLong maxReserved = new AtomicLong();
+
+    // reservations that had to wait for room
+    private static final LongAdder waits = new LongAdder();
+
+    // images streamed because they would not fit in the budget
+    private static final LongAdder fallbacks = new LongAdder();
+
+    private MemoryBudget() { }
+
+    /**
+     * @return The bytes the images being filtered may use at the same time
+     */
+    public static long total() {
+        return TOTAL;
+    }
+
+    /**
+     * Estimates the peak memory used to filter an image in memory: the decoded image,
+     * the extracted pixels and the filtered pixels, 4 bytes per pixel each, the two pixel buffers
+     * being up to an eighth larger as they come from the PixelBufferPool, and at most the strips
+     * of the edges of the image the BorderWorker extends with the border mode.
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @param kernel The kernel of the filter, null for the greyscale filter
+     * @return The working set in bytes
+     */
+    public static long estimate(int width, int height, Kernel kernel) {
+        long pixels = (long) width * height;
+        long strips = kernel == null ? 0
+                : 6 * ((long) kernel.getRadiusX() * height + (long) kernel.getRadiusY() * width);
+        return 4 * pixels + 4 * (2 * pixels + strips) * 9 / 8;
+    }
+
+    /**
+     * Tells if an image can be filtered in memory at all.
+     * @param bytes The working set of the image in memory
+     * @return true if it fits in the budget
+     */
+    public static boolean fits(long bytes) {
+        return bytes <= TOTAL;
+    }
+
+    /**
+     * Reserves memory, waiting until enough of the budget is free.
+     * A reservation larger than the whole budget waits for the whole budget, so it is
+     * granted once nothing else is reserved. The caller must not hold reservations that
+     * only it can release (see tryReserve()), or it may wait forever.
+     * @param bytes The bytes to reserve
+     * @return The reservation, to be closed once the memory is no longer used
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static Reservation reserve(long bytes) throws InterruptedException {
+        int count = units(bytes);
+        if (!permits.tryAcquire(count)) {
+            waits.increment();
+            permits.acquire(count);
+        }
+        return granted(count, bytes);
+    }
+
+    /**
+     * Reserves memory if enough of the budget is free now, without waiting.
+     * A reservation larger than the whole budget needs the whole budget to be free.
+     * @param bytes The bytes to reserve
+     * @return The reservation, to be closed once the memory is no longer used,
+     *         or null if the memory is not free
+     */
+    public static Reservation tryReserve(long bytes) {
+        int count = units(bytes);
+        return permits.tryAcquire(count) ? granted(count, bytes) : null;
+    }
+
+    /**
+     * Reserves the working set of an image before it is decoded, reading its size from
+     * the header of its file: the working set of filtering it in memory if that fits in
+     * the budget, the working set of streaming it otherwise.
+     * An image whose size cannot be read reserves nothing.
+     * @param file The image file
+     * @param kernel The kernel of the filter, null for the greyscale filter
+     * @return The reservation, to be closed once the image has been saved
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static Reservation reserve(File file, Kernel kernel) throws InterruptedException {
+        Dimension size = StreamingImageProcessor.readSize(file);
+        return ofImage(reserve(workingSet(file, size, kernel)), size, kernel);
+    }
+
+    /**
+     * Reserves the working set of an image like reserve(File, Kernel), if enough of
+     * the budget is free now, without waiting: a caller holding reservations it has not
+     * handed on yet can then hand them on before it waits.
+     * @param file The image file
+     * @param kernel The kernel of the filter, null for the greyscale filter
+     * @return The reservation, to be closed once the image has been saved, or null if the memory is not free
+     */
+    public static Reservation tryReserve(File file, Kernel kernel) {
+        Dimension size = StreamingImageProcessor.readSize(file);
+        return ofImage(tryReserve(workingSet(file, size, kernel)), size, kernel);
+    }
+
+    /**
+     * @return The working set of an image, in memory or streamed (with the whole decoded image
+     *         for the formats that cannot be streamed), 0 if its size is unknown
+     */
+    private static long workingSet(File file, Dimension size, Kernel kernel) {
+        if (size == null) {
+            return 0;
+        }
+        long bytes = estimate(size.width, size.height, kernel);
+        return fits(bytes) ? bytes : StreamingImageProcessor.estimate(file, size.width, size.height, kernel);
+    }
+
+    /**
+     * Marks the reservation of an image that does not fit in the budget as streamed.
+     * @return The reservation, null if there is none
+     */
+    private static Reservation ofImage(Reservation reservation, Dimension size, Kernel kernel) {
+        if (reservation != null && size != null && !fits(estimate(size.width, size.height, kernel))) {
+            fallbacks.increment();
+            reservation.streamed = true;
+        }
+        return reservation;
+    }
+
+    private static Reservation granted(int count, long bytes) {
+        long now = reserved.addAndGet(bytes);
+        maxReserved.accumulateAndGet(now, Math::max);
+        return new Reservation(count, bytes);
+    }
+
+    /**
+     * @return The permits of a reservation, at most the whole budget
+     */
+    private static int units(long bytes) {
+        return (int) Math.min(TOTAL_UNITS, (Math.max(0, bytes) + UNIT - 1) / UNIT);
+    }
+
+    /**
+     * @return The bytes currently reserved
+     */
+    public static long getReservedBytes() {
+        return reserved.get();
+    }
+
+    /**
+     * @return The most bytes reserved at once since the last reset
+     */
+    public static long getMaxReservedBytes() {
+        return maxReserved.get();
+    }
+
+    /**
+     * @return The number of reservations that had to wait for room since the last reset
+     */
+    public static long getWaits() {
+        return waits.sum();
+    }
+
+    /**
+     * @return The number of images streamed because they would not fit in the budget since the last reset
+     */
+    public static long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    /**
+     * Resets the maximum and the counters (the reservations held are kept).
+     */
+    public static void resetCounters() {
+        maxReserved.set(reserved.get());
+        waits.reset();
+        fallbacks.reset();
+    }
+
+    /**
+     * Memory reserved from the budget. Closing it more than once releases it once.
+     */
+    public static class Reservation implements AutoCloseable {
+        private final int count;
+        private final long bytes;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        // true if the image is to be streamed rather than filtered in memory
+        private boolean streamed;
+
+        private Reservation(int count, long bytes) {
+            this.count = count;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return true if the image does not fit in the budget and must be streamed (see StreamingImageProcessor)
+         */
+        public boolean isStreamed() {
+            return streamed;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                reserved.addAndGet(-bytes);
+                permits.release(count);
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts and times what the application does, stage by stage, so that a slow batch
+ * can be explained: how long decoding, waiting in a TaskPool, extracting the pixels,
+ * filtering and encoding took, how fast each image was filtered, how evenly the slices
+ * of an image were shared between threads, and how many errors each stage had.
+ *
+ * Recording is a few LongAdder increments, cheap enough to always be on.
+ * The metrics are exposed through JMX (see MetricsMXBean) and dump() prints them
+ * as JSON at the end of a run, also writing them to the file named by the system
+ * property imageprocessor.metrics.file if it is set.
+ */
+public class Metrics {
+
+    /**
+     * The stages an image goes through.
+     * A streamed image is decoded, filtered and encoded band by band, in a single STREAM stage.
+     */
+    public enum Stage { DECODE, QUEUE_WAIT, EXTRACT, FILTER, ENCODE, STREAM }
+
+    private static final String OBJECT_NAME = "com.kcl.osc.imageprocessor:type=Metrics";
+
+    private static final Stage[] STAGES = Stage.values();
+
+    // latency of each stage in microseconds, and errors of each stage
+    private static final Histogram[] latencies = new Histogram[STAGES.length];
+    private static final LongAdder[] errors = new LongAdder[STAGES.length];
+
+    private static final LongAdder images = new LongAdder();
+    private static final LongAdder pixels = new LongAdder();
+
+    // throughput of each image in pixels/ms, i.e. kilopixels/s
+    private static final Histogram imageThroughput = new Histogram();
+
+    // longest slice of an image over its mean slice, in percent
+    private static final Histogram sliceImbalance = new Histogram();
+
+    // tasks waiting in the TaskPools
+    private static final AtomicInteger queueDepth = new AtomicInteger();
+    private static final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    // queue wait in microseconds under each scheduling policy
+    private static final Map<String, Histogram> queueWaits = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < STAGES.length; i++) {
+            latencies[i] = new Histogram();
+            errors[i] = new LongAdder();
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.out.println("Could not register the metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    private Metrics() { }
+
+    /**
+     * Records how long a stage took.
+     * @param stage The stage
+     * @param startNanos The System.nanoTime() at which the stage started
+     * @return The System.nanoTime() now, i.e. the start of the next stage
+     */
+    public static long record(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        latencies[stage.ordinal()].record((now - startNanos) / 1000);
+        return now;
+    }
+
+    /**
+     * Counts an error in a stage.
+     * @param stage The stage
+     */
+    public static void error(Stage stage) {
+        errors[stage.ordinal()].increment();
+    }
+
+    /**
+     * Records that an image has been filtered.
+     * @param pixelCount The number of pixels of the image
+     * @param nanos The time it took, from extraction to encoding
+     */
+    public static void imageProcessed(long pixelCount, long nanos) {
+        images.increment();
+        pixels.add(pixelCount);
+        imageThroughput.record(pixelCount * 1_000_000 / Math.max(1, nanos));
+    }
+
+    /**
+     * Records how the slices of an image, filtered by several threads, took.
+     * @param slices The number of slices
+     * @param totalNanos The time of all the slices added together
+     * @param maxNanos The time of the longest slice
+     */
+    public static void slicesFiltered(long slices, long totalNanos, long maxNanos) {
+        if (slices > 1 && totalNanos > 0) {
+            sliceImbalance.record(maxNanos * slices * 100 / totalNanos);
+        }
+    }
+
+    /**
+     * Called when a task is added to the waiting list of a TaskPool.
+     */
+    public static void taskQueued() {
+        int depth = queueDepth.incrementAndGet();
+        maxQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    /**
+     * Called when a task is taken from the waiting list of a TaskPool.
+     * @param queuedNanos The System.nanoTime() at which the task was queued
+     * @param policy The name of the scheduling policy of the TaskPool
+     */
+    public static void taskDequeued(long queuedNanos, String policy) {
+        queueDepth.decrementAndGet();
+        long now = record(Stage.QUEUE_WAIT, queuedNanos);
+        queueWaits.computeIfAbsent(policy, p -> new Histogram()).record((now - queuedNanos) / 1000);
+    }
+
+
+    /**
+     * Forgets everything recorded so far (except the tasks still queued).
+     */
+    public static void reset() {
+        for (int i = 0; i < STAGES.length; i++) {
+            latencies[i].reset();
+            errors[i].reset();
+        }
+        images.reset();
+        pixels.reset();
+        imageThroughput.reset();
+        sliceImbalance.reset();
+        maxQueueDepth.set(queueDepth.get());
+        queueWaits.values().forEach(Histogram::reset);
+        PixelBufferPool.resetCounters();
+        MemoryBudget.resetCounters();
+        ResultCache.resetCounters();
+    }
+
+    /**
+     * @return All the metrics as a single-line JSON object
+     */
+    public static String summary() {
+        StringBuilder json = new StringBuilder("{");
+        json.append("\"images\":").append(images.sum());
+        json.append(",\"megapixels\":").append(format(pixels.sum() / 1e6));
+        json.append(",\"imageMegapixelsPerSecond\":{\"p50\":").append(format(imageThroughput.getPercentile(50) / 1e3))
+                .append(",\"mean\":").append(format(imageThroughput.getMean() / 1e3)).append('}');
+        json.append(",\"sliceImbalance\":{\"mean\":").append(format(sliceImbalance.getMean() / 100))
+                .append(",\"max\":").append(format(sliceImbalance.getMax() / 100.0)).append('}');
+        json.append(",\"queue\":{\"depth\":").append(queueDepth.get())
+                .append(",\"maxDepth\":").append(maxQueueDepth.get()).append(",\"policies\":{");
+        String separator = "";
+        for (Map.Entry<String, Histogram> entry : queueWaits.entrySet()) {
+            Histogram wait = entry.getValue();
+            json.append(separator).append('"').append(entry.getKey()).append("\":{")
+                    .append("\"count\":").append(wait.getCount())
+                    .append(",\"p50Micros\":").append(wait.getPercentile(50))
+                    .append(",\"p99Micros\":").append(wait.getPercentile(99))
+                    .append(",\"maxMicros\":").append(wait.getMax()).append('}');
+            separator = ",";
+        }
+        json.append("}}");
+        json.append(",\"bufferPool\":{\"hits\":").append(PixelBufferPool.getHits())
+                .append(",\"misses\":").append(PixelBufferPool.getMisses())
+                .append(",\"discards\":").append(PixelBufferPool.getDiscards())
+                .append(",\"pooledBytes\":").append(PixelBufferPool.getPooledBytes()).append('}');
+        json.append(",\"memory\":{\"budgetBytes\":").append(MemoryBudget.total())
+                .append(",\"reservedBytes\":").append(MemoryBudget.getReservedBytes())
+                .append(",\"maxReservedBytes\":").append(MemoryBudget.getMaxReservedBytes())
+                .append(",\"waits\":").append(MemoryBudget.getWaits())
+                .append(",\"streamed\":").append(MemoryBudget.getFallbacks()).append('}');
+        json.append(",\"resultCache\":{\"hits\":").append(ResultCache.getHits())
+                .append(",\"misses\":").append(ResultCache.getMisses())
+                .append(",\"evictions\":").append(ResultCache.getEvictions()).append('}');
+        json.append(",\"stages\":{");
+        for (int i = 0; i < STAGES.length; i++) {
+            Histogram latency = latencies[i];
+            json.append(i == 0 ? "" : ",").append('"').append(STAGES[i].name().toLowerCase(Locale.ROOT)).append("\":{")
+                    .append("\"count\":").append(latency.getCount())
+                    .append(",\"errors\":").append(errors[i].sum())
+                    .append(",\"totalMicros\":").append(latency.getSum())
+                    .append(",\"p50Micros\":").append(latency.getPercentile(50))
+                    .append(",\"p99Micros\":").append(latency.getPercentile(99))
+                    .append(",\"maxMicros\":").append(latency.getMax()).append('}');
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    /**
+     * Prints the summary, and writes it to the file named by the system property
+     * imageprocessor.metrics.file if it is set.
+     */
+    public static void dump() {
+        String summary = summary();
+        System.out.println("Metrics: " + summary);
+
+        String file = System.getProperty("imageprocessor.metrics.file");
+        if (file != null) {
+            try {
+                Files.write(Paths.get(file), (summary + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.out.println("Could not write the metrics to " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Gives a value of each stage, keyed by the stage's name.
+     */
+    private interface StageValue {
+        long of(int stage);
+    }
+
+    private static Map<String, Long> byStage(StageValue value) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i < STAGES.length; i++) {
+            values.put(STAGES[i].name(), value.of(i));
+        }
+        return values;
+    }
+
+    /**
+     * The JMX view of the metrics.
+     */
+    private static class Bean implements MetricsMXBean {
+
+        @Override
+        public long getImagesProcessed() {
+            return images.sum();
+        }
+
+        @Override
+        public double getMegapixelsProcessed() {
+            return pixels.sum() / 1e6;
+        }
+
+        @Override
+        public Map<String, Long> getErrors() {
+            return byStage(i -> errors[i].sum());
+        }
+
+        @Override
+        public Map<String, Long> getStageCounts() {
+            return byStage(i -> latencies[i].getCount());
+        }
+
+        @Override
+        public Map<String, Long> getStageMedianMicros() {
+            return byStage(i -> latencies[i].getPercentile(50));
+        }
+
+        @Override
+        public Map<String, Long> getStage99thPercentileMicros() {
+            return byStage(i -> latencies[i].getPercentile(99));
+        }
+
+        @Override
+        public Map<String, Long> getStageMaxMicros() {
+            return byStage(i -> latencies[i].getMax());
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return queueDepth.get();
+        }
+
+        @Override
+        public int getMaxQueueDepth() {
+            return maxQueueDepth.get();
+        }
+
+        @Override
+        public Map<String, Long> getQueueWaitMedianMicros() {
+            Map<String, Long> medians = new LinkedHashMap<>();
+            queueWaits.forEach((policy, wait) -> medians.put(policy, wait.getPercentile(50)));
+            return medians;
+        }
+
+        @Override
+        public Map<String, Long> getQueueWait99thPercentileMicros() {
+            Map<String, Long> percentiles = new LinkedHashMap<>();
+            queueWaits.forEach((policy, wait) -> percentiles.put(policy, wait.getPercentile(99)));
+            return percentiles;
+        }
+
+        @Override
+        public long getBufferPoolHits() {
+            return PixelBufferPool.getHits();
+        }
+
+        @Override
+        public long getBufferPoolMisses() {
+            return PixelBufferPool.getMisses();
+        }
+
+        @Override
+        public long getBufferPoolBytes() {
+            return PixelBufferPool.getPooledBytes();
+        }
+
+        @Override
+        public long getMemoryReservedBytes() {
+            return MemoryBudget.getReservedBytes();
+        }
+
+        @Override
+        public long getMaxMemoryReservedBytes() {
+            return MemoryBudget.getMaxReservedBytes();
+        }
+
+        @Override
+        public long getMemoryWaits() {
+            return MemoryBudget.getWaits();
+        }
+
+        @Override
+        public long getResultCacheHits() {
+            return ResultCache.getHits();
+        }
+
+        @Override
+        public long getResultCacheMisses() {
+            return ResultCache.getMisses();
+        }
+
+        @Override
+        public double getMedianImageMegapixelsPerSecond() {
+            return imageThroughput.getPercentile(50) / 1e3;
+        }
+
+        @Override
+        public double getMeanSliceImbalance() {
+            return sliceImbalance.getMean() / 100;
+        }
+
+        @Override
+        public String getSummary() {
+            return summary();
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
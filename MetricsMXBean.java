@@ -0,0 +1,103 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.Map;
+
+/**
+ * The metrics of the application as exposed through JMX,
+ * under the name com.kcl.osc.imageprocessor:type=Metrics.
+ * Latencies are in microseconds.
+ */
+public interface MetricsMXBean {
+
+    long getImagesProcessed();
+
+    double getMegapixelsProcessed();
+
+    /**
+     * @return The number of errors of each stage
+     */
+    Map<String, Long> getErrors();
+
+    /**
+     * @return The number of times each stage ran
+     */
+    Map<String, Long> getStageCounts();
+
+    Map<String, Long> getStageMedianMicros();
+
+    Map<String, Long> getStage99thPercentileMicros();
+
+    Map<String, Long> getStageMaxMicros();
+
+    /**
+     * @return The number of tasks waiting in the TaskPools right now
+     */
+    int getQueueDepth();
+
+    int getMaxQueueDepth();
+
+    /**
+     * @return The median time tasks waited in the TaskPools, keyed by scheduling policy
+     */
+    Map<String, Long> getQueueWaitMedianMicros();
+
+    Map<String, Long> getQueueWait99thPercentileMicros();
+
+    /**
+     * @return The number of pixel buffers reused from the PixelBufferPool
+     */
+    long getBufferPoolHits();
+
+    /**
+     * @return The number of pixel buffers the PixelBufferPool had to allocate
+     */
+    long getBufferPoolMisses();
+
+    /**
+     * @return The bytes of the free buffers held by the PixelBufferPool
+     */
+    long getBufferPoolBytes();
+
+    /**
+     * @return The bytes of the MemoryBudget reserved by the images being filtered
+     */
+    long getMemoryReservedBytes();
+
+    long getMaxMemoryReservedBytes();
+
+    /**
+     * @return The number of images that had to wait for room in the MemoryBudget
+     */
+    long getMemoryWaits();
+
+    /**
+     * @return The number of images whose result was restored from the ResultCache
+     */
+    long getResultCacheHits();
+
+    /**
+     * @return The number of images looked up in the ResultCache and filtered
+     */
+    long getResultCacheMisses();
+
+    /**
+     * @return The median throughput of one image, in megapixels/s
+     */
+    double getMedianImageMegapixelsPerSecond();
+
+    /**
+     * @return The mean, over the images split between several threads, of the
+     * longest slice's time divided by the mean slice's time (1 is perfectly balanced)
+     */
+    double getMeanSliceImbalance();
+
+    /**
+     * @return All the metrics as a JSON object
+     */
+    String getSummary();
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    void reset();
+}
@@ -0,0 +1,118 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The number of threads the whole application may keep busy filtering,
+ * shared between image-level parallelism (TaskPool) and
+ * intra-image parallelism (TileScheduler).
+ *
+ * The budget is a count of threads allowed to filter: a thread of a TaskPool takes
+ * one before running an image, and the TileScheduler takes one for each thread
+ * that helps it split an image, only as many as are free. The threads of both
+ * pools together therefore never filter more than the budget at once.
+ *
+ * The budget defaults to the number of available cores and can be changed
+ * with the system property imageprocessor.threads.
+ */
+public class ParallelismBudget {
+
+    private static final int TOTAL = Math.max(1,
+            Integer.getInteger("imageprocessor.threads", Runtime.getRuntime().availableProcessors()));
+
+    // number of images submitted to a TaskPool that have not terminated yet
+    private static final AtomicInteger imagesInFlight = new AtomicInteger();
+
+    // the threads that may start filtering
+    private static final Semaphore freeThreads = new Semaphore(TOTAL);
+
+    private ParallelismBudget() { }
+
+    /**
+     * @return The total number of threads that may filter at the same time
+     */
+    public static int total() {
+        return TOTAL;
+    }
+
+    /**
+     * Called when an image is submitted to a TaskPool.
+     */
+    public static void imageSubmitted() {
+        imagesInFlight.incrementAndGet();
+    }
+
+    /**
+     * Called when an image submitted to a TaskPool has terminated.
+     */
+    public static void imageTerminated() {
+        imagesInFlight.decrementAndGet();
+    }
+
+    /**
+     * @return The number of images waiting or running in a TaskPool
+     */
+    public static int getImagesInFlight() {
+        return imagesInFlight.get();
+    }
+
+    /**
+     * The number of threads an image starting now may use.
+     * When at least as many images as threads are waiting or running, each image
+     * gets a single thread and the budget is spent on running images side by side.
+     * When only a few images remain, the budget is shared between them
+     * and spent on splitting each image into blocks.
+     * @return The number of threads for one image (at least 1)
+     */
+    public static int threadsPerImage() {
+        return Math.max(1, TOTAL / Math.max(1, imagesInFlight.get()));
+    }
+
+    /**
+     * Waits until a thread may start filtering, and counts the calling thread as filtering.
+     * Called by a thread of a TaskPool before it runs an image.
+     */
+    public static void acquireThread() {
+        freeThreads.acquireUninterruptibly();
+    }
+
+    /**
+     * Counts threads that have stopped filtering.
+     * @param count The number of threads, as acquired
+     */
+    public static void releaseThreads(int count) {
+        if (count > 0) {
+            freeThreads.release(count);
+        }
+    }
+
+    /**
+     * Counts as filtering as many more threads as are free, up to a maximum, without waiting.
+     * Called by the TileScheduler for the threads that help the calling thread.
+     * @param max The number of threads wanted
+     * @return The number of threads acquired, from 0 to max, to be released once they are done
+     */
+    public static int tryAcquireThreads(int max) {
+        int count = Math.min(max, freeThreads.availablePermits());
+        while (count > 0 && !freeThreads.tryAcquire(count)) {
+            count = Math.min(count - 1, freeThreads.availablePermits());
+        }
+        return Math.max(0, count);
+    }
+
+    /**
+     * @return The number of threads filtering now
+     */
+    public static int getBusyThreads() {
+        return TOTAL - freeThreads.availablePermits();
+    }
+
+    /**
+     * @return A one-line summary of the budget and how it is currently shared
+     */
+    public static String describe() {
+        return "Parallelism budget: " + TOTAL + " threads, " + getBusyThreads() + " busy, " + getImagesInFlight()
+                + " images in flight, " + threadsPerImage() + " threads per image";
+    }
+}
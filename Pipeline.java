@@ -0,0 +1,339 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javafx.scene.image.Image;
+
+/**
+ * Decodes, filters and encodes images in three stages running side by side,
+ * so that while an image is filtered the next ones are being decoded and the
+ * previous ones encoded: the disk and the CPU are kept busy at the same time
+ * and a batch runs about as fast as its slowest stage.
+ *
+ * The decoder threads hand the decoded images to the filter stage, a TaskPool,
+ * whose waiting list is bounded; the filter stage hands the filtered pixels to
+ * the encoder threads through a bounded queue. A full queue blocks the stage before it,
+ * so no more than a few images are held in memory between two stages.
+ *
+ * Decoding and encoding are mostly spent in compression and disk I/O, so their
+ * threads are not counted in the ParallelismBudget. Their number can be set with
+ * the system properties imageprocessor.decoders and imageprocessor.encoders.
+ *
+ * When a ResultCache is enabled, the decoders first look the image up in it:
+ * an image already filtered the same way is not decoded, filtered or encoded again.
+ *
+ * Small images are not submitted one by one but in batches (see ImageBatch),
+ * each filtered by one thread, so that they are not split between threads
+ * and share the cost of being handed over.
+ *
+ * Before decoding an image, a decoder reserves its working set from the MemoryBudget,
+ * released once the image has been encoded, so the images between the decode and
+ * the encode stages never hold more than the budget. A decoder that has to wait for
+ * room first submits its open batch, whose images would otherwise never release theirs.
+ */
+public class Pipeline {
+
+    private static final int DEFAULT_DECODERS = 2;
+
+    private static final int DEFAULT_ENCODERS = Math.max(1, ParallelismBudget.total() / 2);
+
+    // the filter stage
+    private final TaskPool filterPool;
+
+    private final int decoders;
+    private final int encoders;
+
+    // the number of filtered images waiting to be encoded
+    private final int encodeCapacity;
+
+    // the cache of filtered images, null if disabled
+    private final ResultCache cache;
+
+    // the lowest and highest number of threads an image was filtered with in the last run
+    private int minParallelism;
+    private int maxParallelism;
+
+    /**
+     * Constructor, with the number of decoder and encoder threads and the
+     * ResultCache taken from the system properties.
+     * @param filterPool The thread pool filtering the images, already started
+     */
+    public Pipeline(TaskPool filterPool) {
+        this(filterPool, Integer.getInteger("imageprocessor.decoders", DEFAULT_DECODERS),
+                Integer.getInteger("imageprocessor.encoders", DEFAULT_ENCODERS), ResultCache.open());
+    }
+
+    /**
+     * Constructor.
+     * @param filterPool The thread pool filtering the images, already started
+     * @param decoders The number of threads decoding images
+     * @param encoders The number of threads encoding images
+     * @param cache The cache of filtered images, null for none
+     */
+    public Pipeline(TaskPool filterPool, int decoders, int encoders, ResultCache cache) {
+        if (decoders < 1 || encoders < 1) {
+            throw new IllegalArgumentException("A Pipeline needs at least one decoder and one encoder");
+        }
+        this.filterPool = filterPool;
+        this.decoders = decoders;
+        this.encoders = encoders;
+        this.encodeCapacity = 2 * encoders;
+        this.cache = cache;
+    }
+
+    /**
+     * Decodes, filters and saves images, returning once all of them have been saved.
+     * Images too large to be held in memory are streamed band by band (see StreamingImageProcessor),
+     * in the filter stage.
+     * @param files The image files
+     * @param filter The filter to use
+     * @param save Whether to save the new images or not
+     * @throws InterruptedException if interrupted while waiting for a stage
+     */
+    public void run(Iterator<File> files, String filter, boolean save) throws InterruptedException {
+        BlockingQueue<Encoding> encodeQueue = new ArrayBlockingQueue<>(encodeCapacity);
+        minParallelism = Integer.MAX_VALUE;
+        maxParallelism = 0;
+
+        // The results are only cached for valid filters.
+        // A chain of filters needs no bordered copy of the image, so it counts as GREY for the kernel
+        Kernel kernel = filter.equals("GREY") ? null : Kernel.create(filter);
+        FilterChain chain = FilterChain.isChain(filter) ? FilterChain.create(filter) : null;
+        String filterIdentity;
+        if (cache != null && save && chain != null) {
+            filterIdentity = ResultCache.filterIdentity(filter, chain);
+        } else if (cache != null && save && (kernel != null || filter.equals("GREY"))) {
+            filterIdentity = ResultCache.filterIdentity(filter, kernel);
+        } else {
+            filterIdentity = null;
+        }
+
+        Thread[] encoderThreads = new Thread[encoders];
+        for (int i = 0; i < encoders; i++) {
+            encoderThreads[i] = new Thread(() -> encodeLoop(encodeQueue), "Encoder-" + i);
+            encoderThreads[i].setDaemon(true);
+            encoderThreads[i].start();
+        }
+        long smallImagePixels = ImageBatch.smallImagePixels(kernel);
+
+        Thread[] decoderThreads = new Thread[decoders];
+        for (int i = 0; i < decoders; i++) {
+            decoderThreads[i] = new Thread(() -> decodeLoop(files, filter, kernel, filterIdentity, save,
+                    smallImagePixels, encodeQueue), "Decoder-" + i);
+            decoderThreads[i].setDaemon(true);
+            decoderThreads[i].start();
+        }
+
+        // Every image has been handed to the filter stage once the decoders are done,
+        // and to the encode stage once the filter stage is done
+        for (Thread decoder : decoderThreads) {
+            decoder.join();
+        }
+        filterPool.join();
+        for (int i = 0; i < encoders; i++) {
+            encodeQueue.put(Encoding.END);
+        }
+        for (Thread encoder : encoderThreads) {
+            encoder.join();
+        }
+    }
+
+    /**
+     * @return The lowest number of threads an image of the last run was filtered with
+     */
+    public synchronized int getMinParallelism() {
+        return minParallelism == Integer.MAX_VALUE ? 0 : minParallelism;
+    }
+
+    /**
+     * @return The highest number of threads an image of the last run was filtered with
+     */
+    public synchronized int getMaxParallelism() {
+        return maxParallelism;
+    }
+
+    private synchronized void imageFiltered(int parallelism) {
+        minParallelism = Math.min(minParallelism, parallelism);
+        maxParallelism = Math.max(maxParallelism, parallelism);
+    }
+
+    /**
+     * Decodes images until there are none left, and submits each of them to the filter stage,
+     * unless its result is in the cache.
+     * @param kernel The kernel of the filter, null for the greyscale filter
+     * @param filterIdentity The identity of the filter in the cache, null not to use the cache
+     * @param smallImagePixels The size below which images are batched
+     */
+    private void decodeLoop(Iterator<File> files, String filter, Kernel kernel, String filterIdentity, boolean save,
+            long smallImagePixels, BlockingQueue<Encoding> encodeQueue) {
+        ImageBatch batch = new ImageBatch(smallImagePixels);
+        while (true) {
+            File file;
+            synchronized (files) {
+                if (!files.hasNext()) {
+                    break;
+                }
+                file = files.next();
+            }
+            String opname = file.getName() + "_filtered.png";
+            Path output = Paths.get(opname);
+
+            String key = null;
+            if (filterIdentity != null) {
+                try {
+                    key = cache.key(file.toPath(), filterIdentity);
+                } catch (IOException e) {
+                    System.out.println("Could not hash " + file + ": " + e.getMessage());
+                }
+                if (key != null && cache.restore(key, output)) {
+                    continue;
+                }
+            }
+            String cacheKey = key;
+
+            MemoryBudget.Reservation reservation = null;
+            try {
+                // The images of the open batch hold memory only the filter stage releases:
+                // the batch is submitted before waiting for room, or it could wait forever
+                reservation = MemoryBudget.tryReserve(file, kernel);
+                if (reservation == null) {
+                    if (!batch.isEmpty()) {
+                        filterPool.submit(batch);
+                        batch = new ImageBatch(smallImagePixels);
+                    }
+                    reservation = MemoryBudget.reserve(file, kernel);
+                }
+                MemoryBudget.Reservation memory = reservation;
+                if (memory.isStreamed()) {
+                    // Too large to be held in memory: filtered band by band from the file
+                    StreamingImageProcessor processor = new StreamingImageProcessor(file, filter, save, opname);
+                    filterPool.submit(() -> {
+                        try {
+                            processor.run();
+                        } finally {
+                            memory.close();
+                        }
+                        if (cacheKey != null && processor.isSaved()) {
+                            cache.store(cacheKey, output);
+                        }
+                    }, processor.getCost(), processor.getPriority());
+                    continue;
+                }
+
+                long startNanos = System.nanoTime();
+                Image image = new Image("file:" + file.getPath());
+                Metrics.record(Metrics.Stage.DECODE, startNanos);
+                if (image.isError()) {
+                    Metrics.error(Metrics.Stage.DECODE);
+                    System.out.println("Could not decode " + file + ": " + image.getException());
+                    memory.close();
+                    continue;
+                }
+
+                ImageProcessorMT processor = new ImageProcessorMT(image, filter, save, opname);
+                processor.setSaver(pixels -> {
+                    try {
+                        encodeQueue.put(new Encoding(pixels, opname, cacheKey, memory));
+                    } catch (InterruptedException e) {
+                        Metrics.error(Metrics.Stage.ENCODE);
+                        PixelBufferPool.release(pixels);
+                        memory.close();
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                Runnable task = () -> {
+                    try {
+                        processor.run();
+                    } finally {
+                        // Otherwise released by the encoder once the image is saved
+                        if (!save || !processor.hasEnded()) {
+                            memory.close();
+                        }
+                    }
+                    imageFiltered(processor.getParallelism());
+                };
+
+                long pixels = (long) image.getWidth() * (long) image.getHeight();
+                if (pixels >= smallImagePixels) {
+                    filterPool.submit(task, processor.getCost(), processor.getPriority());
+                    continue;
+                }
+                processor.setSplit(false);
+                batch.add(task, pixels, processor.getCost(), processor.getPriority());
+                if (batch.isFull()) {
+                    filterPool.submit(batch);
+                    batch = new ImageBatch(smallImagePixels);
+                }
+            } catch (InterruptedException e) {
+                if (reservation != null) {
+                    reservation.close();
+                }
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            try {
+                filterPool.submit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Encodes filtered images until told to stop.
+     */
+    private void encodeLoop(BlockingQueue<Encoding> encodeQueue) {
+        while (true) {
+            Encoding encoding;
+            try {
+                encoding = encodeQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (encoding == Encoding.END) {
+                return;
+            }
+            long startNanos = System.nanoTime();
+            boolean saved = ImageProcessorMT.saveNewImage(encoding.pixels, encoding.filename);
+            Metrics.record(Metrics.Stage.ENCODE, startNanos);
+            PixelBufferPool.release(encoding.pixels);
+            encoding.memory.close();
+            if (saved && encoding.cacheKey != null) {
+                cache.store(encoding.cacheKey, Paths.get(encoding.filename));
+            }
+        }
+    }
+
+    /**
+     * A filtered image waiting to be encoded.
+     */
+    private static class Encoding {
+        // tells an encoder thread to stop
+        private static final Encoding END = new Encoding(null, null, null, null);
+
+        private final PixelBuffer pixels;
+        private final String filename;
+
+        // the key of the image in the cache, null if it is not cached
+        private final String cacheKey;
+
+        // the memory of the image in the MemoryBudget, released once it is saved
+        private final MemoryBudget.Reservation memory;
+
+        Encoding(PixelBuffer pixels, String filename, String cacheKey, MemoryBudget.Reservation memory) {
+            this.pixels = pixels;
+            this.filename = filename;
+            this.cacheKey = cacheKey;
+            this.memory = memory;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.kcl.osc.imageprocessor;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * A contiguous buffer of packed ARGB pixels (one int per pixel),
+ * stored row by row: the pixel at (x, y) is at index y * width + x.
+ */
+public class PixelBuffer {
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    /**
+     * Creates an empty (fully transparent black) buffer.
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     */
+    public PixelBuffer(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    /**
+     * Wraps an existing array of packed ARGB pixels.
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @param pixels The pixels, row by row (at least width * height of them)
+     */
+    public PixelBuffer(int width, int height, int[] pixels) {
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("Buffer too small for a " + width + "x" + height + " image");
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gives direct access to the underlying array.
+     * @return The packed ARGB pixels, row by row
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int get(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    public void set(int x, int y, int argb) {
+        pixels[y * width + x] = argb;
+    }
+
+    /**
+     * Wraps this buffer in a BufferedImage without copying the pixels,
+     * so that it can be written out by ImageIO.
+     * @return An ARGB image backed by this buffer
+     */
+    public BufferedImage toBufferedImage() {
+        DirectColorModel colorModel = (DirectColorModel) ColorModel.getRGBdefault();
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, width * height),
+                width, height, width, colorModel.getMasks(), null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Gives the pixels of a BufferedImage as a PixelBuffer. For TYPE_INT_ARGB and
+     * TYPE_INT_RGB images the image's own array is used, without copying
+     * (the alpha of TYPE_INT_RGB pixels is then 0, which the workers ignore).
+     * @param image The image
+     * @return The pixels of the image
+     */
+    public static PixelBuffer of(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        if ((image.getType() == BufferedImage.TYPE_INT_ARGB || image.getType() == BufferedImage.TYPE_INT_RGB)
+                && raster.getParent() == null
+                && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width) {
+            return new PixelBuffer(width, height, ((DataBufferInt) raster.getDataBuffer()).getData());
+        }
+        PixelBuffer pixels = new PixelBuffer(width, height);
+        readPixels(image, pixels.pixels, 0, width);
+        return pixels;
+    }
+
+    /**
+     * Copies the pixels of a BufferedImage as packed ARGB pixels, reading the raster's
+     * data buffer directly for the int and byte layouts ImageIO decodes to.
+     * Grey images are copied as they are (as JavaFX does), without the gamma
+     * conversion BufferedImage.getRGB() applies to them.
+     * @param image The image
+     * @param pixels Where to write the pixels
+     * @param offset The index of the first pixel of the first row
+     * @param scanline The distance between the first pixels of two consecutive rows
+     */
+    public static void readPixels(BufferedImage image, int[] pixels, int offset, int scanline) {
+        readPixels(image, 0, image.getHeight(), pixels, offset, scanline);
+    }
+
+    /**
+     * Copies some rows of a BufferedImage as packed ARGB pixels, like readPixels(BufferedImage, int[], int, int).
+     * @param image The image
+     * @param firstRow The first row to copy
+     * @param height The number of rows to copy
+     * @param pixels Where to write the pixels
+     * @param offset The index of the first pixel of the first row
+     * @param scanline The distance between the first pixels of two consecutive rows
+     */
+    public static void readPixels(BufferedImage image, int firstRow, int height, int[] pixels, int offset,
+            int scanline) {
+        int width = image.getWidth();
+        WritableRaster raster = image.getRaster();
+        if (raster.getParent() != null) {
+            image.getRGB(0, firstRow, width, height, pixels, offset, scanline);
+            return;
+        }
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_RGB: {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+                int alpha = image.getType() == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+                for (int y = 0; y < height; y++) {
+                    int in = (firstRow + y) * stride;
+                    int out = offset + y * scanline;
+                    for (int x = 0; x < width; x++) {
+                        pixels[out + x] = data[in + x] | alpha;
+                    }
+                }
+                break;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+                for (int y = 0; y < height; y++) {
+                    int in = (firstRow + y) * stride;
+                    int out = offset + y * scanline;
+                    for (int x = 0; x < width; x++, in += 3) {
+                        pixels[out + x] = pack(data[in + 2] & 0xFF, data[in + 1] & 0xFF, data[in] & 0xFF);
+                    }
+                }
+                break;
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+                for (int y = 0; y < height; y++) {
+                    int in = (firstRow + y) * stride;
+                    int out = offset + y * scanline;
+                    for (int x = 0; x < width; x++, in += 4) {
+                        pixels[out + x] = ((data[in] & 0xFF) << 24) | ((data[in + 3] & 0xFF) << 16)
+                                | ((data[in + 2] & 0xFF) << 8) | (data[in + 1] & 0xFF);
+                    }
+                }
+                break;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int stride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+                for (int y = 0; y < height; y++) {
+                    int in = (firstRow + y) * stride;
+                    int out = offset + y * scanline;
+                    for (int x = 0; x < width; x++) {
+                        int grey = data[in + x] & 0xFF;
+                        pixels[out + x] = pack(grey, grey, grey);
+                    }
+                }
+                break;
+            }
+            default:
+                image.getRGB(0, firstRow, width, height, pixels, offset, scanline);
+        }
+    }
+
+    public static int red(int argb) {
+        return (argb >> 16) & 0xFF;
+    }
+
+    public static int green(int argb) {
+        return (argb >> 8) & 0xFF;
+    }
+
+    public static int blue(int argb) {
+        return argb & 0xFF;
+    }
+
+    /**
+     * Packs the channels of an opaque pixel.
+     * The channels must already be in the range [0,255].
+     */
+    public static int pack(int red, int green, int blue) {
+        return 0xFF000000 | (red << 16) | (green << 8) | blue;
+    }
+}
@@ -0,0 +1,216 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of pixel arrays shared by all the image processors, so that filtering images
+ * of the same few resolutions over and over allocates no large array once warmed up.
+ * The workers borrow the scratch arrays they need for a part of an image (int, float
+ * or double) from it too, so that the blocks of an image reuse the arrays of the blocks before.
+ *
+ * The arrays are kept in buckets by size: a request is rounded up to the next of eight
+ * sizes per power of two, so an array may be up to 12.5% larger than asked for
+ * (PixelBuffer allows that), and images of nearby sizes share arrays.
+ * The pool keeps at most imageprocessor.pool.bytes bytes of arrays (by default an eighth
+ * of the heap); arrays returned beyond that are left to the garbage collector.
+ *
+ * A borrowed array is not cleared: the borrower must write all of it that it reads.
+ * An array must not be used once released. Only the arrays borrowed from the pool are
+ * pooled when released; others, such as the pixels of a PixelBuffer.of() image, are ignored.
+ */
+public class PixelBufferPool {
+
+    private static final long MAX_POOLED_BYTES = Long.getLong("imageprocessor.pool.bytes",
+            Runtime.getRuntime().maxMemory() / 8);
+
+    /**
+     * The smallest array the pool hands out, in elements.
+     */
+    private static final int MIN_SIZE = 1024;
+
+    // the free arrays, by type and length
+    private static final ConcurrentHashMap<Integer, Deque<int[]>> intBuckets = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, Deque<float[]>> floatBuckets = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, Deque<double[]>> doubleBuckets = new ConcurrentHashMap<>();
+
+    // the arrays borrowed and not released yet (arrays have identity equality),
+    // weakly so that an array never released is still collected
+    private static final Map<Object, Boolean> borrowed = Collections.synchronizedMap(new WeakHashMap<>());
+
+    // the bytes of the free arrays
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder discards = new LongAdder();
+
+    private PixelBufferPool() { }
+
+    /**
+     * Borrows a buffer for an image, reusing a free array of the right size if there is one.
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @return The buffer, whose pixels are undefined
+     */
+    public static PixelBuffer borrow(int width, int height) {
+        return new PixelBuffer(width, height, borrowInts((long) width * height));
+    }
+
+    /**
+     * Borrows an int array.
+     * @param length The number of elements needed
+     * @return An array of at least that length, whose elements are undefined
+     */
+    public static int[] borrowInts(long length) {
+        int size = bucketSize(length);
+        int[] array = take(intBuckets, size, Integer.BYTES);
+        return lend(array != null ? array : new int[size]);
+    }
+
+    /**
+     * Borrows a float array.
+     * @param length The number of elements needed
+     * @return An array of at least that length, whose elements are undefined
+     */
+    public static float[] borrowFloats(long length) {
+        int size = bucketSize(length);
+        float[] array = take(floatBuckets, size, Float.BYTES);
+        return lend(array != null ? array : new float[size]);
+    }
+
+    /**
+     * Borrows a double array.
+     * @param length The number of elements needed
+     * @return An array of at least that length, whose elements are undefined
+     */
+    public static double[] borrowDoubles(long length) {
+        int size = bucketSize(length);
+        double[] array = take(doubleBuckets, size, Double.BYTES);
+        return lend(array != null ? array : new double[size]);
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers that were not borrowed are ignored.
+     * @param buffer The buffer, which must not be used afterwards
+     */
+    public static void release(PixelBuffer buffer) {
+        release(buffer.getPixels());
+    }
+
+    /**
+     * Gives an array back to the pool. Arrays that were not borrowed are ignored.
+     * @param array The array, which must not be used afterwards
+     */
+    public static void release(int[] array) {
+        give(intBuckets, array, array.length, Integer.BYTES);
+    }
+
+    /**
+     * Gives an array back to the pool. Arrays that were not borrowed are ignored.
+     * @param array The array, which must not be used afterwards
+     */
+    public static void release(float[] array) {
+        give(floatBuckets, array, array.length, Float.BYTES);
+    }
+
+    /**
+     * Gives an array back to the pool. Arrays that were not borrowed are ignored.
+     * @param array The array, which must not be used afterwards
+     */
+    public static void release(double[] array) {
+        give(doubleBuckets, array, array.length, Double.BYTES);
+    }
+
+    /**
+     * @return A free array of the given size, or null if there is none
+     */
+    private static <T> T take(ConcurrentHashMap<Integer, Deque<T>> buckets, int size, int elementBytes) {
+        Deque<T> bucket = buckets.get(size);
+        T array = bucket == null ? null : bucket.pollFirst();
+        if (array != null) {
+            pooledBytes.addAndGet(-(long) elementBytes * size);
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return array;
+    }
+
+    private static <T> T lend(T array) {
+        borrowed.put(array, Boolean.TRUE);
+        return array;
+    }
+
+    private static <T> void give(ConcurrentHashMap<Integer, Deque<T>> buckets, T array, int size, int elementBytes) {
+        if (borrowed.remove(array) == null) {
+            return;
+        }
+        long bytes = (long) elementBytes * size;
+        if (pooledBytes.addAndGet(bytes) > MAX_POOLED_BYTES) {
+            pooledBytes.addAndGet(-bytes);
+            discards.increment();
+            return;
+        }
+        // Most recently used first, as it is the most likely to still be in the caches
+        buckets.computeIfAbsent(size, s -> new ConcurrentLinkedDeque<>()).offerFirst(array);
+    }
+
+    /**
+     * Rounds a number of elements up to the size of its bucket.
+     */
+    private static int bucketSize(long length) {
+        if (length <= MIN_SIZE) {
+            return MIN_SIZE;
+        }
+        long step = Long.highestOneBit(length) / 8;
+        long size = (length + step - 1) / step * step;
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many elements for one array: " + length);
+        }
+        return (int) size;
+    }
+
+    /**
+     * @return The number of buffers and arrays borrowed from a free array
+     */
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of buffers and arrays borrowed for which a new array was allocated
+     */
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of arrays released when the pool was full
+     */
+    public static long getDiscards() {
+        return discards.sum();
+    }
+
+    /**
+     * @return The bytes of the free arrays held by the pool
+     */
+    public static long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Resets the counters, keeping the free arrays.
+     */
+    public static void resetCounters() {
+        hits.reset();
+        misses.reset();
+        discards.reset();
+    }
+}
@@ -0,0 +1,391 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes a non-interlaced PNG one row at a time, straight from the compressed stream,
+ * keeping only the current and the previous row in memory.
+ * (ImageIO's PNG reader decodes the whole image even when asked for a few rows.)
+ */
+public class PngRowReader implements RowReader {
+
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504C5445;
+    private static final int TRNS = 0x74524E53;
+    private static final int IDAT = 0x49444154;
+
+    private static final int GREY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GREY_ALPHA = 4;
+    private static final int RGB_ALPHA = 6;
+
+    private final DataInputStream file;
+    private DataInputStream pixelData;
+
+    private int width;
+    private int height;
+    private int bitDepth;
+    private int colourType;
+    private int channels;
+
+    // ARGB colours of a palette image, 256 of them
+    private int[] palette;
+
+    // the grey or RGB sample values of the transparent colour, null if there is none
+    private int[] transparentColour;
+
+    // the number of bytes of the pixels of a row, and of the pixel to the left in the filters
+    private int rowBytes;
+    private int filterOffset;
+
+    private byte[] previousRow;
+    private byte[] currentRow;
+
+    private PngRowReader(DataInputStream file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens a PNG for reading row by row.
+     * @param file The image file
+     * @return The reader, or null if the file is not a PNG or is interlaced
+     * @throws IOException if the file cannot be read
+     */
+    public static PngRowReader open(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        PngRowReader reader = new PngRowReader(in);
+        try {
+            if (reader.readHeader()) {
+                return reader;
+            }
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+        in.close();
+        return null;
+    }
+
+    /**
+     * Reads the chunks up to the first IDAT chunk.
+     * @return false if the file is not a PNG this class can decode
+     */
+    private boolean readHeader() throws IOException {
+        if (file.readLong() != SIGNATURE) {
+            return false;
+        }
+        while (true) {
+            int length = file.readInt();
+            int type = file.readInt();
+
+            if (type == IHDR) {
+                width = file.readInt();
+                height = file.readInt();
+                bitDepth = file.readUnsignedByte();
+                colourType = file.readUnsignedByte();
+                file.skipBytes(2);
+                int interlace = file.readUnsignedByte();
+                file.skipBytes(4 + length - 13);
+                if (interlace != 0) {
+                    return false;
+                }
+            } else if (type == PLTE) {
+                if (length % 3 != 0 || length > 3 * 256) {
+                    throw new IOException("Invalid PNG palette length " + length);
+                }
+                // Room for any sample, the colours missing from the palette are opaque black
+                palette = new int[256];
+                Arrays.fill(palette, 0xFF000000);
+                for (int i = 0; i < length / 3; i++) {
+                    palette[i] = 0xFF000000 | (file.readUnsignedByte() << 16)
+                            | (file.readUnsignedByte() << 8) | file.readUnsignedByte();
+                }
+                file.skipBytes(4);
+            } else if (type == TRNS) {
+                readTransparency(length);
+                file.skipBytes(4);
+            } else if (type == IDAT) {
+                startPixelData(length);
+                return true;
+            } else {
+                skipFully(length + 4L);
+            }
+        }
+    }
+
+    private void readTransparency(int length) throws IOException {
+        if (colourType == PALETTE && palette != null) {
+            if (length > palette.length) {
+                throw new IOException("Invalid PNG transparency length " + length);
+            }
+            for (int i = 0; i < length; i++) {
+                palette[i] = (palette[i] & 0x00FFFFFF) | (file.readUnsignedByte() << 24);
+            }
+        } else if (colourType == GREY || colourType == RGB) {
+            transparentColour = new int[length / 2];
+            for (int i = 0; i < transparentColour.length; i++) {
+                transparentColour[i] = file.readUnsignedShort();
+            }
+        } else {
+            file.skipBytes(length);
+        }
+    }
+
+    private void startPixelData(int firstChunkLength) {
+        switch (colourType) {
+            case GREY: case PALETTE: channels = 1; break;
+            case GREY_ALPHA: channels = 2; break;
+            case RGB: channels = 3; break;
+            case RGB_ALPHA: channels = 4; break;
+            default: throw new IllegalArgumentException("Invalid PNG colour type " + colourType);
+        }
+        int bitsPerPixel = channels * bitDepth;
+        rowBytes = (int) (((long) width * bitsPerPixel + 7) / 8);
+        filterOffset = Math.max(1, bitsPerPixel / 8);
+        previousRow = new byte[rowBytes];
+        currentRow = new byte[rowBytes];
+        pixelData = new DataInputStream(new InflaterInputStream(new IdatInputStream(firstChunkLength)));
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRows(int count, int[] pixels, int offset, int scanline) throws IOException {
+        for (int r = 0; r < count; r++) {
+            byte[] swap = previousRow;
+            previousRow = currentRow;
+            currentRow = swap;
+
+            int filter = pixelData.readUnsignedByte();
+            pixelData.readFully(currentRow);
+            unfilter(filter);
+            toArgb(pixels, offset + r * scanline);
+        }
+    }
+
+    /**
+     * Undoes the filter the encoder applied to the current row.
+     */
+    private void unfilter(int filter) throws IOException {
+        byte[] row = currentRow;
+        byte[] above = previousRow;
+        int left = filterOffset;
+
+        switch (filter) {
+            case 0:
+                break;
+            case 1:
+                for (int i = left; i < rowBytes; i++) {
+                    row[i] += row[i - left];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < rowBytes; i++) {
+                    row[i] += above[i];
+                }
+                break;
+            case 3:
+                for (int i = 0; i < rowBytes; i++) {
+                    int a = i >= left ? row[i - left] & 0xFF : 0;
+                    row[i] += (byte) ((a + (above[i] & 0xFF)) >>> 1);
+                }
+                break;
+            case 4:
+                for (int i = 0; i < rowBytes; i++) {
+                    int a = i >= left ? row[i - left] & 0xFF : 0;
+                    int b = above[i] & 0xFF;
+                    int c = i >= left ? above[i - left] & 0xFF : 0;
+                    row[i] += (byte) paeth(a, b, c);
+                }
+                break;
+            default:
+                throw new IOException("Invalid PNG filter type " + filter);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Converts the samples of the current row to packed ARGB pixels.
+     */
+    private void toArgb(int[] pixels, int offset) {
+        for (int x = 0; x < width; x++) {
+            int argb;
+            switch (colourType) {
+                case GREY: {
+                    int grey = sample(x, 0);
+                    argb = PixelBuffer.pack(toByte(grey), toByte(grey), toByte(grey));
+                    if (isTransparent(grey)) {
+                        argb &= 0x00FFFFFF;
+                    }
+                    break;
+                }
+                case PALETTE:
+                    argb = palette[sample(x, 0)];
+                    break;
+                case GREY_ALPHA: {
+                    int grey = toByte(sample(x, 0));
+                    argb = (toByte(sample(x, 1)) << 24) | (grey << 16) | (grey << 8) | grey;
+                    break;
+                }
+                case RGB: {
+                    int red = sample(x, 0);
+                    int green = sample(x, 1);
+                    int blue = sample(x, 2);
+                    argb = PixelBuffer.pack(toByte(red), toByte(green), toByte(blue));
+                    if (isTransparent(red, green, blue)) {
+                        argb &= 0x00FFFFFF;
+                    }
+                    break;
+                }
+                default:
+                    argb = (toByte(sample(x, 3)) << 24) | (toByte(sample(x, 0)) << 16)
+                            | (toByte(sample(x, 1)) << 8) | toByte(sample(x, 2));
+            }
+            pixels[offset + x] = argb;
+        }
+    }
+
+    /**
+     * @return The value of a channel of the pixel at x in the current row, at the image's bit depth
+     */
+    private int sample(int x, int channel) {
+        if (bitDepth == 8) {
+            return currentRow[x * channels + channel] & 0xFF;
+        } else if (bitDepth == 16) {
+            int index = (x * channels + channel) * 2;
+            return ((currentRow[index] & 0xFF) << 8) | (currentRow[index + 1] & 0xFF);
+        }
+        // 1, 2 or 4 bits per sample, for grey and palette images only
+        int bit = x * bitDepth;
+        int shift = 8 - bitDepth - (bit & 7);
+        return (currentRow[bit >> 3] >> shift) & ((1 << bitDepth) - 1);
+    }
+
+    /**
+     * Scales a sample at the image's bit depth to 8 bits.
+     */
+    private int toByte(int sample) {
+        if (bitDepth == 8) {
+            return sample;
+        } else if (bitDepth == 16) {
+            return sample >> 8;
+        }
+        return sample * 255 / ((1 << bitDepth) - 1);
+    }
+
+    private boolean isTransparent(int grey) {
+        return transparentColour != null && transparentColour.length >= 1 && transparentColour[0] == grey;
+    }
+
+    private boolean isTransparent(int red, int green, int blue) {
+        return transparentColour != null && transparentColour.length >= 3 && transparentColour[0] == red
+                && transparentColour[1] == green && transparentColour[2] == blue;
+    }
+
+    private void skipFully(long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = file.skip(bytes);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            bytes -= skipped;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (pixelData != null) {
+                // Ends the Inflater, which holds native memory
+                pixelData.close();
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * The data of the consecutive IDAT chunks, read as one stream.
+     */
+    private class IdatInputStream extends InputStream {
+
+        // bytes left in the current chunk, -1 once past the last IDAT chunk
+        private int remaining;
+
+        IdatInputStream(int firstChunkLength) {
+            remaining = firstChunkLength;
+        }
+
+        /**
+         * Moves to the next IDAT chunk when the current one is exhausted.
+         * @return false at the end of the IDAT chunks
+         */
+        private boolean nextChunk() throws IOException {
+            while (remaining == 0) {
+                // CRC of the chunk just read
+                file.skipBytes(4);
+                int length = file.readInt();
+                if (file.readInt() != IDAT) {
+                    remaining = -1;
+                    return false;
+                }
+                remaining = length;
+            }
+            return remaining > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            remaining--;
+            return file.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int read = file.read(buffer, offset, Math.min(length, remaining));
+            if (read < 0) {
+                throw new EOFException("Truncated PNG");
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+}
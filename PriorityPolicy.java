@@ -0,0 +1,68 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the tasks of the highest priority class first (see Costed), in the order they were
+ * submitted. So that low priority tasks are not starved, a task goes up one class for every
+ * aging interval it has waited (imageprocessor.scheduling.aging milliseconds, 1000 by default).
+ *
+ * The waiting list of a TaskPool is short (a few tasks per thread),
+ * so the next task is found by looking at all of them.
+ */
+public class PriorityPolicy implements SchedulingPolicy {
+
+    private static final long DEFAULT_AGING_MILLIS = 1000;
+
+    private final long agingNanos;
+
+    private final ArrayList<TaskPool.Task> waitingList = new ArrayList<>();
+
+    /**
+     * Constructor, with the aging interval taken from the system properties.
+     */
+    public PriorityPolicy() {
+        this(Long.getLong("imageprocessor.scheduling.aging", DEFAULT_AGING_MILLIS), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor.
+     * @param aging How long a task waits to go up one priority class
+     * @param unit The unit of the aging interval
+     */
+    public PriorityPolicy(long aging, TimeUnit unit) {
+        this.agingNanos = Math.max(1, unit.toNanos(aging));
+    }
+
+    @Override
+    public void add(TaskPool.Task task) {
+        waitingList.add(task);
+    }
+
+    @Override
+    public TaskPool.Task poll(long nowNanos) {
+        int best = -1;
+        long bestPriority = Long.MIN_VALUE;
+        for (int i = 0; i < waitingList.size(); i++) {
+            TaskPool.Task task = waitingList.get(i);
+            long priority = task.getPriority() + (nowNanos - task.getQueuedNanos()) / agingNanos;
+            // The list is in submission order, so on a tie the oldest task wins
+            if (priority > bestPriority) {
+                best = i;
+                bestPriority = priority;
+            }
+        }
+        return best < 0 ? null : waitingList.remove(best);
+    }
+
+    @Override
+    public int size() {
+        return waitingList.size();
+    }
+
+    @Override
+    public String getName() {
+        return "PRIORITY";
+    }
+}
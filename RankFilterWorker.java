@@ -0,0 +1,191 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.Arrays;
+
+/**
+ * Applies a rank filter (the median, or any other percentile) of the square around each pixel,
+ * with sliding histograms, so that the cost per pixel does not depend on the radius
+ * (Perreault and Hebert's constant-time median filter):
+ * each column of the part of the image keeps the histogram of its 2 * radius + 1 rows around
+ * the current row, updated with one pixel in and one out when moving down a row, and the
+ * histogram of the square is the sum of the histograms of its columns, updated with one
+ * column in and one out when moving right a pixel.
+ *
+ * The histograms have 16 coarse bins of 16 fine bins each. Only the coarse histogram of the
+ * square is updated at every pixel; a segment of its fine histogram is brought up to date
+ * only when the rank falls in it, which it mostly keeps doing from one pixel to the next.
+ * The channels are filtered one after the other, to keep the histograms of a row in the cache.
+ */
+public class RankFilterWorker extends Worker {
+
+    private static final int FINE_BINS = 256;
+    private static final int COARSE_BINS = 16;
+    private static final int COARSE_SHIFT = 4;
+
+    private final int radius;
+
+    // the index of the value kept in the sorted values of the square, from 0
+    private final int rank;
+
+    /**
+     * Constructor.
+     * @param baseImage The original image, with a border of the radius
+     * @param start The row of the bordered image to start filtering from (inclusive)
+     * @param end The row of the bordered image to end filtering (exclusive)
+     * @param result The result image
+     * @param radius The radius of the square
+     * @param rank The index of the value kept in the sorted values of the square,
+     *             from 0 to (2 * radius + 1)^2 - 1
+     */
+    public RankFilterWorker(PixelBuffer baseImage, int start, int end, PixelBuffer result, int radius, int rank) {
+        super(baseImage, start, end, result);
+        this.radius = radius;
+        this.rank = rank;
+    }
+
+    /**
+     * Applies the filter to a part of an image,
+     * from the startRow (inclusive) to the endRow (exclusive).
+     * The base image is expected to have a border of the radius,
+     * and the rows are rows of the bordered image.
+     * Modifies the filteredImage.
+     */
+    @Override
+    public void run() {
+        int inWidth = image.getWidth();
+        int[] columnFine = PixelBufferPool.borrowInts((long) inWidth * FINE_BINS);
+        int[] columnCoarse = PixelBufferPool.borrowInts((long) inWidth * COARSE_BINS);
+        int[] out = filteredImage.getPixels();
+        try {
+            // Opaque, then each channel is added
+            for (int i = startRow; i < endRow; i++) {
+                int outOffset = resultOffset + (i - radius) * resultStride;
+                Arrays.fill(out, outOffset, outOffset + inWidth - 2 * radius, 0xFF000000);
+            }
+            for (int shift = 16; shift >= 0; shift -= 8) {
+                filterChannel(shift, columnFine, columnCoarse);
+            }
+        } finally {
+            PixelBufferPool.release(columnFine);
+            PixelBufferPool.release(columnCoarse);
+        }
+    }
+
+    /**
+     * Applies the filter to one channel.
+     * @param shift The position of the channel in a packed pixel
+     * @param columnFine The fine histograms of the columns, one after the other
+     * @param columnCoarse The coarse histograms of the columns, one after the other
+     */
+    private void filterChannel(int shift, int[] columnFine, int[] columnCoarse) {
+        int[] in = image.getPixels();
+        int[] out = filteredImage.getPixels();
+        int inWidth = image.getWidth();
+        int outWidth = inWidth - 2 * radius;
+        int size = 2 * radius + 1;
+
+        // The columns' histograms of the rows around startRow
+        // The arrays are borrowed, so may be longer than the histograms
+        Arrays.fill(columnFine, 0, inWidth * FINE_BINS, 0);
+        Arrays.fill(columnCoarse, 0, inWidth * COARSE_BINS, 0);
+        for (int r = startRow - radius; r <= startRow + radius; r++) {
+            addRow(in, r * inWidth, inWidth, shift, columnFine, columnCoarse, 1);
+        }
+
+        int[] coarse = new int[COARSE_BINS];
+        int[] fine = new int[FINE_BINS];
+        // the column of the square each segment of fine was last brought up to date for
+        int[] fineColumn = new int[COARSE_BINS];
+
+        for (int i = startRow; i < endRow; i++) {
+            if (i > startRow) {
+                addRow(in, (i - radius - 1) * inWidth, inWidth, shift, columnFine, columnCoarse, -1);
+                addRow(in, (i + radius) * inWidth, inWidth, shift, columnFine, columnCoarse, 1);
+            }
+
+            // The square of the first pixel of the row
+            Arrays.fill(coarse, 0);
+            for (int c = 0; c < size; c++) {
+                for (int b = 0; b < COARSE_BINS; b++) {
+                    coarse[b] += columnCoarse[c * COARSE_BINS + b];
+                }
+            }
+            Arrays.fill(fineColumn, -size);
+
+            int outOffset = resultOffset + (i - radius) * resultStride;
+            for (int j = 0; j < outWidth; j++) {
+                if (j > 0) {
+                    int added = (j + size - 1) * COARSE_BINS;
+                    int removed = (j - 1) * COARSE_BINS;
+                    for (int b = 0; b < COARSE_BINS; b++) {
+                        coarse[b] += columnCoarse[added + b] - columnCoarse[removed + b];
+                    }
+                }
+
+                // The coarse bin holding the rank, and the rank within it
+                int segment = 0;
+                int remaining = rank;
+                while (remaining >= coarse[segment]) {
+                    remaining -= coarse[segment];
+                    segment++;
+                }
+
+                updateSegment(fine, columnFine, segment, fineColumn[segment], j, size);
+                fineColumn[segment] = j;
+
+                int value = segment << COARSE_SHIFT;
+                while (remaining >= fine[value]) {
+                    remaining -= fine[value];
+                    value++;
+                }
+                out[outOffset + j] |= value << shift;
+            }
+        }
+    }
+
+    /**
+     * Adds (or removes) a row of one channel to the histograms of the columns.
+     * @param count 1 to add the row, -1 to remove it
+     */
+    private static void addRow(int[] in, int rowStart, int width, int shift, int[] columnFine, int[] columnCoarse,
+            int count) {
+        for (int c = 0; c < width; c++) {
+            int value = (in[rowStart + c] >> shift) & 0xFF;
+            columnFine[c * FINE_BINS + value] += count;
+            columnCoarse[c * COARSE_BINS + (value >> COARSE_SHIFT)] += count;
+        }
+    }
+
+    /**
+     * Brings a segment of the fine histogram of the square up to date for the square
+     * starting at a column, moving it from the column it was last up to date for, or
+     * summing the columns' histograms again if that is further than the width of the square.
+     * @param fine The fine histogram of the square
+     * @param columnFine The fine histograms of the columns
+     * @param segment The coarse bin of the segment
+     * @param from The first column of the square the segment is up to date for
+     * @param to The first column of the square the segment is needed for
+     * @param size The width of the square
+     */
+    private static void updateSegment(int[] fine, int[] columnFine, int segment, int from, int to, int size) {
+        int first = segment << COARSE_SHIFT;
+        int last = first + (1 << COARSE_SHIFT);
+        if (to - from >= size) {
+            Arrays.fill(fine, first, last, 0);
+            for (int c = to; c < to + size; c++) {
+                int column = c * FINE_BINS;
+                for (int v = first; v < last; v++) {
+                    fine[v] += columnFine[column + v];
+                }
+            }
+            return;
+        }
+        for (int c = from; c < to; c++) {
+            int added = (c + size) * FINE_BINS;
+            int removed = c * FINE_BINS;
+            for (int v = first; v < last; v++) {
+                fine[v] += columnFine[added + v] - columnFine[removed + v];
+            }
+        }
+    }
+}
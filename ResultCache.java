@@ -0,0 +1,290 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * A persistent cache of filtered images, so that rerunning a filter over a folder
+ * only filters the images that changed.
+ *
+ * An entry is keyed by the SHA-256 of the input file's bytes and of the filter's identity
+ * (its name and, for a kernel, its exact weights), and holds the encoded output.
+ * On a hit the output is hard-linked to the entry (or copied where links are not supported)
+ * without decoding anything. Hashing an input costs one sequential read of the file.
+ *
+ * The cache is kept in the folder named by the system property imageprocessor.cache.dir,
+ * and is disabled when it is not set. When its entries add up to more than
+ * imageprocessor.cache.bytes (1 GiB by default), the least recently used are deleted;
+ * an entry's modification time is its last use.
+ */
+public class ResultCache {
+
+    private static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+    private static final String SUFFIX = ".png";
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    private final Path folder;
+    private final long maxBytes;
+
+    // the bytes of all the entries
+    private final AtomicLong size;
+
+    // held while an entry is replaced or deleted and its bytes accounted, picked by key
+    private final Object[] locks;
+
+    /**
+     * Constructor.
+     * @param folder The folder holding the entries, created if needed
+     * @param maxBytes The most bytes the entries may add up to
+     * @throws IOException if the folder cannot be created or read
+     */
+    public ResultCache(Path folder, long maxBytes) throws IOException {
+        this.folder = Files.createDirectories(folder);
+        this.maxBytes = maxBytes;
+        this.size = new AtomicLong();
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        for (Path entry : listEntries()) {
+            size.addAndGet(Files.size(entry));
+        }
+    }
+
+    /**
+     * Opens the cache configured by the system properties.
+     * @return The cache, or null if it is disabled or cannot be opened
+     */
+    public static ResultCache open() {
+        String folder = System.getProperty("imageprocessor.cache.dir");
+        if (folder == null) {
+            return null;
+        }
+        try {
+            return new ResultCache(Paths.get(folder), Long.getLong("imageprocessor.cache.bytes", DEFAULT_MAX_BYTES));
+        } catch (IOException e) {
+            System.out.println("Could not open the result cache " + folder + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Identifies a filter for the cache: GREY, or the name and weights of a kernel
+     * and the border mode if it is not CONSTANT (see BorderMode.fromSystemProperty()).
+     * @param filterType The name of the filter
+     * @param kernel The kernel of the filter, null for GREY
+     * @return The identity of the filter
+     */
+    public static String filterIdentity(String filterType, Kernel kernel) {
+        if (kernel == null) {
+            return filterType;
+        }
+        BorderMode mode = BorderMode.fromSystemProperty();
+        String identity = filterType + "/" + kernel.getIdentity();
+        return mode == BorderMode.CONSTANT ? identity : identity + "/" + mode;
+    }
+
+    /**
+     * Identifies a chain of filters for the cache, by its name and the weights of its steps,
+     * and the border mode if it is not CONSTANT.
+     * @param filterType The name of the chain
+     * @param chain The filters
+     * @return The identity of the chain
+     */
+    public static String filterIdentity(String filterType, FilterChain chain) {
+        BorderMode mode = BorderMode.fromSystemProperty();
+        String identity = filterType + "/" + chain.getIdentity();
+        return mode == BorderMode.CONSTANT ? identity : identity + "/" + mode;
+    }
+
+    /**
+     * Computes the key of the result of a filter on an input file.
+     * @param input The input image file
+     * @param filterIdentity The identity of the filter (see filterIdentity)
+     * @return The key
+     * @throws IOException if the input cannot be read
+     */
+    public String key(Path input, String filterIdentity) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update(filterIdentity.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(input)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Puts the cached result in place of the output, if there is one.
+     * @param key The key of the result
+     * @param output The output file
+     * @return true on a hit, false if the output must be computed
+     */
+    public boolean restore(String key, Path output) {
+        Path entry = folder.resolve(key + SUFFIX);
+        if (!Files.exists(entry)) {
+            misses.increment();
+            return false;
+        }
+        try {
+            Files.deleteIfExists(output);
+            try {
+                Files.createLink(output, entry);
+            } catch (UnsupportedOperationException | FileAlreadyExistsException e) {
+                Files.copy(entry, output, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                if (!Files.exists(entry)) {
+                    throw e;
+                }
+                // e.g. the output is on another file system than the cache
+                Files.copy(entry, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.increment();
+            return true;
+        } catch (IOException e) {
+            // the entry was just evicted
+            misses.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Adds a freshly saved output to the cache, then evicts the least recently
+     * used entries if the cache is too large.
+     * @param key The key of the result
+     * @param output The output file
+     */
+    public void store(String key, Path output) {
+        Path entry = folder.resolve(key + SUFFIX);
+        try {
+            // Copied rather than linked: the output may be overwritten in place later
+            Path temporary = Files.createTempFile(folder, key, ".tmp");
+            Files.copy(output, temporary, StandardCopyOption.REPLACE_EXISTING);
+            long bytes = Files.size(temporary);
+            long total;
+            // Otherwise another store or an eviction of the same entry could count the replaced bytes too
+            synchronized (lockFor(key)) {
+                long replaced = Files.exists(entry) ? Files.size(entry) : 0;
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                total = size.addAndGet(bytes - replaced);
+            }
+            if (total > maxBytes) {
+                evict();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not cache " + output + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits in its limit.
+     */
+    private synchronized void evict() throws IOException {
+        if (size.get() <= maxBytes) {
+            return;
+        }
+        Map<Path, FileTime> lastUsed = new HashMap<>();
+        for (Path entry : listEntries()) {
+            lastUsed.put(entry, Files.getLastModifiedTime(entry));
+        }
+        List<Path> entries = new ArrayList<>(lastUsed.keySet());
+        entries.sort(Comparator.comparing(lastUsed::get));
+
+        for (Path entry : entries) {
+            if (size.get() <= maxBytes) {
+                break;
+            }
+            String name = entry.getFileName().toString();
+            synchronized (lockFor(name.substring(0, name.length() - SUFFIX.length()))) {
+                if (!Files.exists(entry)) {
+                    continue;
+                }
+                long bytes = Files.size(entry);
+                Files.delete(entry);
+                size.addAndGet(-bytes);
+                evictions.increment();
+            }
+        }
+    }
+
+    private Object lockFor(String key) {
+        return locks[Math.floorMod(key.hashCode(), LOCK_STRIPES)];
+    }
+
+    private List<Path> listEntries() throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            List<Path> entries = new ArrayList<>();
+            files.filter(f -> f.getFileName().toString().endsWith(SUFFIX)).forEach(entries::add);
+            return entries;
+        }
+    }
+
+    /**
+     * @return The number of outputs restored from a cache
+     */
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of outputs looked up and not found in a cache
+     */
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of entries deleted to keep a cache within its limit
+     */
+    public static long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Resets the counters.
+     */
+    public static void resetCounters() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+}
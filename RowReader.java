@@ -0,0 +1,66 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes an image a few rows at a time, from top to bottom.
+ * Non-interlaced PNGs and TIFFs are decoded as their rows are asked for, without holding the
+ * whole image in memory; other formats are decoded whole on the first read (see holdsWholeImage()).
+ */
+public interface RowReader extends Closeable {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Decodes the next rows of the image as packed ARGB pixels.
+     * @param count The number of rows to decode
+     * @param pixels Where to write the pixels
+     * @param offset The index of the first pixel of the first row
+     * @param scanline The distance between the first pixels of two consecutive rows
+     * @throws IOException if the image cannot be decoded
+     */
+    void readRows(int count, int[] pixels, int offset, int scanline) throws IOException;
+
+    /**
+     * Tells if the whole image is decoded on the first read and held until the last one,
+     * because the format cannot be decoded a few rows at a time.
+     * @return true if the reader holds the whole decoded image
+     */
+    default boolean holdsWholeImage() {
+        return false;
+    }
+
+    /**
+     * Opens an image file for reading row by row.
+     * Non-interlaced PNGs are decoded sequentially by PngRowReader.
+     * Other images are read through ImageIO: TIFFs a region at a time, the others whole.
+     * @param file The image file
+     * @return The reader
+     * @throws IOException if the file cannot be read or is not a supported image
+     */
+    static RowReader open(File file) throws IOException {
+        RowReader reader = PngRowReader.open(file);
+        if (reader == null) {
+            reader = new ImageIORowReader(file);
+        }
+        return reader;
+    }
+
+    /**
+     * Tells if open() would decode an image file whole (see holdsWholeImage()).
+     * Only the header of the file is read.
+     * @param file The image file
+     * @return true if the reader would hold the whole decoded image, false too if the file cannot be read
+     */
+    static boolean holdsWholeImage(File file) {
+        try (RowReader reader = open(file)) {
+            return reader.holdsWholeImage();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
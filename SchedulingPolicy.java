@@ -0,0 +1,60 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * Decides in which order the tasks waiting in a TaskPool run.
+ * The TaskPool calls a policy with its lock held, so a policy need not be thread-safe.
+ *
+ * The policy of the TaskPools created without one is named by the system property
+ * imageprocessor.scheduling: FIFO (the default), SJF or PRIORITY.
+ */
+public interface SchedulingPolicy {
+
+    /**
+     * Adds a task to the waiting list.
+     * @param task The task
+     */
+    void add(TaskPool.Task task);
+
+    /**
+     * Removes the task to run next from the waiting list.
+     * @param nowNanos The System.nanoTime() now
+     * @return The task, or null if the waiting list is empty
+     */
+    TaskPool.Task poll(long nowNanos);
+
+    /**
+     * @return The number of tasks waiting
+     */
+    int size();
+
+    /**
+     * @return The name of the policy, which its queue-wait statistics are recorded under
+     */
+    String getName();
+
+    /**
+     * Creates a policy from its name.
+     * @param name FIFO, SJF or PRIORITY
+     * @return The policy
+     */
+    static SchedulingPolicy create(String name) {
+        switch (name.toUpperCase()) {
+            case "FIFO":
+                return new FifoPolicy();
+            case "SJF":
+                return new ShortestJobFirstPolicy();
+            case "PRIORITY":
+                return new PriorityPolicy();
+            default:
+                throw new IllegalArgumentException("Unknown scheduling policy: " + name);
+        }
+    }
+
+    /**
+     * Creates the policy named by the system property imageprocessor.scheduling.
+     * @return The policy, FIFO if the property is not set
+     */
+    static SchedulingPolicy fromSystemProperty() {
+        return create(System.getProperty("imageprocessor.scheduling", "FIFO"));
+    }
+}
@@ -0,0 +1,84 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * Applies a separable filter as a horizontal pass
+ * followed by a vertical pass.
+ */
+public class SeparableFilterWorker extends Worker {
+
+    private double[] rowWeights;
+    private double[] columnWeights;
+
+    public SeparableFilterWorker(PixelBuffer baseImage, int start, int end, PixelBuffer result, Kernel kernel) {
+        super(baseImage, start, end, result);
+        this.rowWeights = kernel.getRowWeights();
+        this.columnWeights = kernel.getColumnWeights();
+    }
+
+    /**
+     * Applies the filter to a part of an image,
+     * from the startRow (inclusive) to the endRow (exclusive).
+     * The base image is expected to have a border of the kernel's radius.
+     * The horizontal pass covers the rows needed by the vertical pass
+     * and is kept in intermediate buffers borrowed from the PixelBufferPool.
+     * Modifies the filteredImage.
+     */
+    @Override
+    public void run() {
+        int[] in = image.getPixels();
+        int[] out = filteredImage.getPixels();
+        int inWidth = image.getWidth();
+        // the number of pixels filtered in a row
+        int outWidth = inWidth - 2 * (rowWeights.length / 2);
+        int radiusY = columnWeights.length / 2;
+
+        // Horizontal pass, over the rows of the slice and radiusY rows around it
+        int firstRow = startRow - radiusY;
+        int rows = endRow - startRow + columnWeights.length - 1;
+        double[] red = PixelBufferPool.borrowDoubles((long) rows * outWidth);
+        double[] green = PixelBufferPool.borrowDoubles((long) rows * outWidth);
+        double[] blue = PixelBufferPool.borrowDoubles((long) rows * outWidth);
+        try {
+            for (int r = 0; r < rows; r++) {
+                int inOffset = (firstRow + r) * inWidth;
+                int tmpOffset = r * outWidth;
+                for (int j = 0; j < outWidth; j++) {
+                    double sumRed = 0;
+                    double sumGreen = 0;
+                    double sumBlue = 0;
+                    for (int l = 0; l < rowWeights.length; l++) {
+                        int pixel = in[inOffset + j + l];
+                        sumRed += PixelBuffer.red(pixel) * rowWeights[l];
+                        sumGreen += PixelBuffer.green(pixel) * rowWeights[l];
+                        sumBlue += PixelBuffer.blue(pixel) * rowWeights[l];
+                    }
+                    red[tmpOffset + j] = sumRed;
+                    green[tmpOffset + j] = sumGreen;
+                    blue[tmpOffset + j] = sumBlue;
+                }
+            }
+
+            // Vertical pass, from the intermediate buffer to the result
+            for (int i = startRow; i < endRow; i++) {
+                int tmpOffset = (i - startRow) * outWidth;
+                int outOffset = resultOffset + (i - radiusY) * resultStride;
+                for (int j = 0; j < outWidth; j++) {
+                    double sumRed = 0;
+                    double sumGreen = 0;
+                    double sumBlue = 0;
+                    for (int k = 0; k < columnWeights.length; k++) {
+                        int index = tmpOffset + k * outWidth + j;
+                        sumRed += red[index] * columnWeights[k];
+                        sumGreen += green[index] * columnWeights[k];
+                        sumBlue += blue[index] * columnWeights[k];
+                    }
+                    out[outOffset + j] = PixelBuffer.pack(clampRGB(sumRed), clampRGB(sumGreen), clampRGB(sumBlue));
+                }
+            }
+        } finally {
+            PixelBufferPool.release(red);
+            PixelBufferPool.release(green);
+            PixelBufferPool.release(blue);
+        }
+    }
+}
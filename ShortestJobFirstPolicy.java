@@ -0,0 +1,73 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the cheapest task first (see Costed), so that small images are not held up
+ * behind large ones; tasks of the same cost run in the order they were submitted.
+ * Cheaper tasks that keep arriving would starve an expensive one, so a task that has
+ * waited for the aging interval (imageprocessor.scheduling.aging milliseconds, 1000 by
+ * default) runs before any cheaper task, the oldest first.
+ *
+ * The waiting list of a TaskPool is short (a few tasks per thread),
+ * so the next task is found by looking at all of them.
+ */
+public class ShortestJobFirstPolicy implements SchedulingPolicy {
+
+    private static final long DEFAULT_AGING_MILLIS = 1000;
+
+    private final long agingNanos;
+
+    private final ArrayList<TaskPool.Task> waitingList = new ArrayList<>();
+
+    /**
+     * Constructor, with the aging interval taken from the system properties.
+     */
+    public ShortestJobFirstPolicy() {
+        this(Long.getLong("imageprocessor.scheduling.aging", DEFAULT_AGING_MILLIS), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor.
+     * @param aging How long a task waits before it runs ahead of cheaper tasks
+     * @param unit The unit of the aging interval
+     */
+    public ShortestJobFirstPolicy(long aging, TimeUnit unit) {
+        this.agingNanos = Math.max(1, unit.toNanos(aging));
+    }
+
+    @Override
+    public void add(TaskPool.Task task) {
+        waitingList.add(task);
+    }
+
+    @Override
+    public TaskPool.Task poll(long nowNanos) {
+        if (waitingList.isEmpty()) {
+            return null;
+        }
+        // The list is in submission order, so the first task has waited the longest
+        if (nowNanos - waitingList.get(0).getQueuedNanos() >= agingNanos) {
+            return waitingList.remove(0);
+        }
+        int best = 0;
+        for (int i = 1; i < waitingList.size(); i++) {
+            // On a tie the oldest task wins
+            if (waitingList.get(i).getCost() < waitingList.get(best).getCost()) {
+                best = i;
+            }
+        }
+        return waitingList.remove(best);
+    }
+
+    @Override
+    public int size() {
+        return waitingList.size();
+    }
+
+    @Override
+    public String getName() {
+        return "SJF";
+    }
+}
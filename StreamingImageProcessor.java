@@ -0,0 +1,251 @@
+package com.kcl.osc.imageprocessor;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Filters an image too large to be held in memory: the image is decoded,
+ * filtered and encoded one horizontal band of rows at a time (see BandedFilteredImage),
+ * so only O(width x band height) pixels are in memory at once, plus the whole decoded
+ * image for the formats the RowReader cannot decode a few rows at a time (such as JPEG).
+ * Such an image is not filtered if it does not fit in the MemoryBudget even so.
+ */
+public class StreamingImageProcessor implements Runnable, Costed {
+
+    /**
+     * The number of pixels in a band: the band height is this divided by the width.
+     */
+    private static final int BAND_PIXELS = 1 << 22;
+
+    private File input;
+    private String opfilename;
+    private String filterType;
+    private boolean save;
+
+    // true if the filtering has ended
+    private volatile boolean ended;
+
+    // true once the filtered image has been saved
+    private volatile boolean saved;
+
+    // the priority class of the processor in a TaskPool (see Costed)
+    private int priority;
+
+    // the number of pixels of the image, read from its header by getCost(), -1 until then
+    private long pixels = -1;
+
+    // what the kernel sees beyond the edges of the image
+    private BorderMode borderMode = BorderMode.fromSystemProperty();
+
+    /**
+     * Constructor.
+     * @param input The image file to process.
+     * @param filter The filter to use.
+     * @param save Whether to save the new image or not.
+     * @param opname The output image filename
+     */
+    public StreamingImageProcessor(File input, String filter, boolean save, String opname) {
+        this.input = input;
+        this.opfilename = opname;
+        this.filterType = filter;
+        this.save = save;
+        ended = false;
+    }
+
+    /**
+     * Sets what the kernel sees beyond the edges of the image
+     * (by default, the mode named by the system property imageprocessor.border).
+     * WRAP is not supported: the image is then not filtered.
+     * @param borderMode The border mode
+     */
+    public void setBorderMode(BorderMode borderMode) {
+        this.borderMode = borderMode;
+    }
+
+    /**
+     * Tells if an image is too large to be decoded and filtered in memory within the
+     * MemoryBudget, in which case it should be streamed band by band instead.
+     * Only the header of the file is read.
+     * @param file The image file
+     * @param kernel The kernel of the filter, null for the greyscale filter
+     * @return true if the image should be streamed
+     */
+    public static boolean isNeeded(File file, Kernel kernel) {
+        Dimension size = readSize(file);
+        return size != null && !MemoryBudget.fits(MemoryBudget.estimate(size.width, size.height, kernel));
+    }
+
+    /**
+     * Estimates the peak memory used to stream an image: a band of the input with its halo
+     * and a band of the output, 4 bytes per pixel each.
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @param kernel The kernel of the filter, null for the greyscale filter
+     * @return The working set in bytes
+     */
+    public static long estimate(int width, int height, Kernel kernel) {
+        int bandHeight = Math.max(1, Math.min(height, BAND_PIXELS / Math.max(1, width)));
+        int radiusX = kernel == null ? 0 : kernel.getRadiusX();
+        int radiusY = kernel == null ? 0 : kernel.getRadiusY();
+        return 4L * (width + 2 * radiusX) * (bandHeight + 2 * radiusY) + 4L * width * bandHeight;
+    }
+
+    /**
+     * Estimates the peak memory used to stream an image file: estimate(int, int, Kernel),
+     * plus 4 bytes per pixel for the whole decoded image if the RowReader of the file holds it.
+     * Only the header of the file is read.
+     * @param file The image file
+     * @param width The width of the image in pixels
+     * @param height The height of the image in pixels
+     * @param kernel The kernel of the filter, null for the greyscale filter
+     * @return The working set in bytes
+     */
+    public static long estimate(File file, int width, int height, Kernel kernel) {
+        long bytes = estimate(width, height, kernel);
+        return RowReader.holdsWholeImage(file) ? bytes + 4L * width * height : bytes;
+    }
+
+    /**
+     * Reads the size of an image from the header of its file.
+     * @param file The image file
+     * @return The size of the image, or null if it cannot be read
+     */
+    static Dimension readSize(File file) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Runs this image processor.
+     */
+    @Override
+    public void run() {
+        try {
+            filter();
+        } catch (IOException e) {
+            Metrics.error(Metrics.Stage.STREAM);
+            System.out.println("Could not filter " + input + ": " + e.getMessage());
+        }
+        ended = true;
+    }
+
+    /**
+     * @return The estimated cost of filtering the image (see Costed)
+     */
+    @Override
+    public long getCost() {
+        if (pixels < 0) {
+            Dimension size = readSize(input);
+            pixels = size == null ? 0 : (long) size.width * size.height;
+        }
+        if (FilterChain.isChain(filterType)) {
+            return Costed.estimate(pixels, FilterChain.create(filterType));
+        }
+        return Costed.estimate(pixels, filterType.equals("GREY") ? null : Kernel.create(filterType));
+    }
+
+    @Override
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the priority class of this processor in a TaskPool using the PRIORITY policy.
+     * @param priority The priority class, higher runs first
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Tells if the filtering has ended or not.
+     * @return true if the task has ended
+     */
+    public boolean hasEnded() {
+        return ended;
+    }
+
+    /**
+     * Tells if the filtered image has been saved.
+     * @return true if the image was filtered and saved without error
+     */
+    public boolean isSaved() {
+        return saved;
+    }
+
+    /**
+     * Decodes, filters and saves the image band by band.
+     * The bands are computed as the encoder asks for them, so when the image
+     * is not saved it is still encoded, to nowhere.
+     */
+    private void filter() throws IOException {
+        Kernel kernel = null;
+        FilterChain chain = null;
+        if (FilterChain.isChain(filterType)) {
+            chain = FilterChain.create(filterType);
+            if (chain == null) {
+                System.out.println("Invalid filterType was given: " + filterType);
+                Metrics.error(Metrics.Stage.FILTER);
+                return;
+            }
+        } else if (!filterType.equals("GREY")) {
+            kernel = Kernel.create(filterType);
+            if (kernel == null) {
+                System.out.println("Invalid filterType was given: " + filterType);
+                Metrics.error(Metrics.Stage.FILTER);
+                return;
+            }
+        }
+        if (borderMode == BorderMode.WRAP && (kernel != null || chain != null)) {
+            System.out.println("Could not stream " + input + ": a WRAP border needs the whole image");
+            Metrics.error(Metrics.Stage.FILTER);
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        try (RowReader reader = RowReader.open(input)) {
+            long bytes = estimate(reader.getWidth(), reader.getHeight(), kernel)
+                    + 4L * reader.getWidth() * reader.getHeight();
+            if (reader.holdsWholeImage() && !MemoryBudget.fits(bytes)) {
+                System.out.println("Could not stream " + input + ": its format is decoded whole, and "
+                        + reader.getWidth() + "x" + reader.getHeight() + " pixels do not fit in the memory budget");
+                Metrics.error(Metrics.Stage.STREAM);
+                return;
+            }
+            int bandHeight = Math.max(1, BAND_PIXELS / reader.getWidth());
+            BandedFilteredImage filtered = chain != null
+                    ? new BandedFilteredImage(reader, chain, borderMode, bandHeight)
+                    : new BandedFilteredImage(reader, kernel, borderMode, bandHeight);
+            if (save) {
+                // The file may be a hard link to a ResultCache entry: replace it rather than write through it
+                Files.deleteIfExists(Paths.get(opfilename));
+                saved = ImageIO.write(filtered, "png", new File(opfilename));
+            } else {
+                ImageIO.write(filtered, "png", OutputStream.nullOutputStream());
+            }
+            long endNanos = Metrics.record(Metrics.Stage.STREAM, startNanos);
+            Metrics.imageProcessed((long) reader.getWidth() * reader.getHeight(), endNanos - startNanos);
+        }
+    }
+}
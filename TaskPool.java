@@ -1,88 +1,189 @@
 package com.kcl.osc.imageprocessor;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class TaskPool implements Runnable {
+/**
+ * A fixed number of threads running the tasks submitted to it.
+ * The order in which waiting tasks run is decided by a SchedulingPolicy.
+ * A thread runs a task only once the ParallelismBudget lets it filter.
+ */
+public class TaskPool {
 
-    // number of maximum running threads
-    private int size;
+    // number of worker threads
+    private final int size;
 
-    // actual number of running threads
-    private int threadsCount;
+    // maximum number of tasks waiting to be run
+    private final int capacity;
 
-    // waiting list of tasks
-    private LinkedList<ImageProcessorMT> waitingList;
+    // waiting list of tasks, in the order of the scheduling policy
+    private final SchedulingPolicy waitingList;
 
-    // actually running tasks
-    private ArrayList<ImageProcessorMT> runningList;
+    // the threads running the tasks, created by start()
+    private final Thread[] threads;
+
+    // number of tasks submitted that have not terminated yet
+    private int pendingCount;
+
+    // true once shutdown() has been called
+    private boolean shutdown;
+
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final Condition notFull;
+    private final Condition allDone;
 
     /**
      * A thread pool that will manage the execution of threads.
+     * The waiting list holds up to twice as many tasks as there are threads.
      * @param size The size of the thread pool
      */
     public TaskPool(int size) {
-        this.size = size;
-        threadsCount = 0;
-        waitingList = new LinkedList<>();
-        runningList = new ArrayList<>();
+        this(size, 2 * size);
     }
 
     /**
-     * Adds a task (ImageProcessorMT) to the waiting list.
-     * @param task the ImageProcessorMT
+     * A thread pool that will manage the execution of threads, with the
+     * scheduling policy named by the system property imageprocessor.scheduling.
+     * @param size The size of the thread pool
+     * @param capacity The maximum number of tasks waiting to be run
      */
-    public void submit(ImageProcessorMT task) {
-        waitingList.add(task);
+    public TaskPool(int size, int capacity) {
+        this(size, capacity, SchedulingPolicy.fromSystemProperty());
     }
 
     /**
-     * Starts the thread pool.
-     * Runs as many ImageProcessorMTs as it can up to its size.
+     * A thread pool that will manage the execution of threads.
+     * @param size The size of the thread pool
+     * @param capacity The maximum number of tasks waiting to be run
+     * @param policy The order in which the waiting tasks run
      */
-    public void start() {
-        this.run();
+    public TaskPool(int size, int capacity, SchedulingPolicy policy) {
+        if (size < 1 || capacity < 1) {
+            throw new IllegalArgumentException("The size and capacity of a TaskPool must be positive");
+        }
+        this.size = size;
+        this.capacity = capacity;
+        waitingList = policy;
+        threads = new Thread[size];
+        pendingCount = 0;
+        shutdown = false;
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+        notFull = lock.newCondition();
+        allDone = lock.newCondition();
     }
 
     /**
-     * Runs all the tasks in the thread pool.
-     * It terminates when all tasks have been executed and terminated.
+     * Starts the worker threads of the pool.
+     * They keep running tasks until the pool is shut down.
      */
-    @Override
-    public void run() {
-
-        // Going to run all tasks in the waiting list
-        while(!waitingList.isEmpty()) {
-            // Starting new task
-            new Thread(waitingList.peek()).start();
-            runningList.add(waitingList.pop());
-            threadsCount += 1;
-
-            // Checking for tasks that has ended if maximum capacity of running threads is reached
-            while(threadsCount == size) {
-                tryRemoveFinishedTasks();
+    public void start() {
+        lock.lock();
+        try {
+            if (threads[0] != null) {
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                threads[i] = new Thread(this::workerLoop, "TaskPool-" + i);
+                threads[i].setDaemon(true);
+                threads[i].start();
             }
+        } finally {
+            lock.unlock();
         }
+    }
 
-        // Now that the waiting list is empty,
-        // we need to wait that all remaining tasks (in the running list) terminate
-        while(!runningList.isEmpty()) {
-            tryRemoveFinishedTasks();
+    /**
+     * Adds a task (an ImageProcessorMT or StreamingImageProcessor) to the waiting list.
+     * Its cost and priority are its own if it is Costed, 0 otherwise.
+     * Blocks while the waiting list is full.
+     * @param task the image processor
+     * @return A future completed when the task has terminated
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public CompletableFuture<Void> submit(Runnable task) throws InterruptedException {
+        if (task instanceof Costed) {
+            Costed costed = (Costed) task;
+            return submit(task, costed.getCost(), costed.getPriority());
         }
+        return submit(task, 0, 0);
+    }
 
+    /**
+     * Adds a task to the waiting list. Blocks while the waiting list is full.
+     * @param task the image processor
+     * @param cost The estimated cost of the task (see Costed)
+     * @param priority The priority class of the task (see Costed)
+     * @return A future completed when the task has terminated
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public CompletableFuture<Void> submit(Runnable task, long cost, int priority) throws InterruptedException {
+        Task entry = new Task(task, cost, priority);
+        lock.lockInterruptibly();
+        try {
+            while (waitingList.size() == capacity && !shutdown) {
+                notFull.await();
+            }
+            if (shutdown) {
+                throw new IllegalStateException("The TaskPool has been shut down");
+            }
+            entry.queuedNanos = System.nanoTime();
+            waitingList.add(entry);
+            Metrics.taskQueued();
+            pendingCount += 1;
+            ParallelismBudget.imageSubmitted();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return entry.future;
     }
 
     /**
-     * Removes finished tasks from the running list,
-     * none is removed if none has finished.
+     * Runs tasks from the waiting list until the pool is shut down
+     * and the waiting list is empty.
      */
-    private void tryRemoveFinishedTasks() {
-        Iterator<ImageProcessorMT> it = runningList.iterator();
-        while(it.hasNext()) {
-            if(it.next().hasEnded()) {
-                it.remove();
-                threadsCount -= 1;
+    private void workerLoop() {
+        while (true) {
+            Task task;
+            lock.lock();
+            try {
+                while (waitingList.size() == 0 && !shutdown) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (waitingList.size() == 0) {
+                    return;
+                }
+                task = waitingList.poll(System.nanoTime());
+                Metrics.taskDequeued(task.queuedNanos, waitingList.getName());
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+
+            // Waits while the threads of the TileScheduler use the whole budget
+            ParallelismBudget.acquireThread();
+            try {
+                task.processor.run();
+                task.future.complete(null);
+            } catch (Throwable t) {
+                task.future.completeExceptionally(t);
+            } finally {
+                ParallelismBudget.releaseThreads(1);
+            }
+
+            ParallelismBudget.imageTerminated();
+            lock.lock();
+            try {
+                pendingCount -= 1;
+                if (pendingCount == 0) {
+                    allDone.signalAll();
+                }
+            } finally {
+                lock.unlock();
             }
         }
     }
@@ -92,8 +193,83 @@ public class TaskPool implements Runnable {
      * all tasks in the thread pool have terminated
      */
     public void join() throws InterruptedException {
-        while (!waitingList.isEmpty() && !runningList.isEmpty()) {
-            // Just wait that all tasks in the pool terminate
+        lock.lockInterruptibly();
+        try {
+            while (pendingCount > 0) {
+                allDone.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Causes the calling thread to wait until all tasks in the
+     * thread pool have terminated, or the timeout elapses.
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * @return true if all tasks have terminated, false if the timeout elapsed first
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (pendingCount > 0) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = allDone.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting new tasks. The tasks already submitted are still run,
+     * then the worker threads terminate.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A submitted image processor and the future completed when it terminates.
+     */
+    public static class Task {
+        private final Runnable processor;
+        private final CompletableFuture<Void> future;
+        private final long cost;
+        private final int priority;
+
+        // the System.nanoTime() at which the task joined the waiting list
+        private long queuedNanos;
+
+        Task(Runnable processor, long cost, int priority) {
+            this.processor = processor;
+            this.future = new CompletableFuture<>();
+            this.cost = cost;
+            this.priority = priority;
+        }
+
+        public long getCost() {
+            return cost;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public long getQueuedNanos() {
+            return queuedNanos;
         }
     }
 
@@ -0,0 +1,201 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Splits the rows of an image into blocks and runs a Worker on each block,
+ * on the calling thread and on threads of a long-lived pool shared by all images.
+ * Each thread takes the next block as soon as it is done with one, so threads
+ * that got cheaper rows take more blocks.
+ *
+ * The calling thread (a thread of a TaskPool, which already counts in the
+ * ParallelismBudget) is helped by as many threads of the pool as the budget
+ * has free, so all filtering (whether one image is split in many blocks or
+ * many images are filtered in one block each) stays within the budget.
+ */
+public class TileScheduler {
+
+    /**
+     * Creates the Worker that filters a block of rows.
+     */
+    public interface WorkerFactory {
+        Worker create(int start, int end);
+    }
+
+    /**
+     * Blocks smaller than this (in pixels) are not worth handing to another thread.
+     */
+    private static final int MIN_PIXELS_PER_BLOCK = 16 * 1024;
+
+    /**
+     * The number of blocks per thread: more blocks than threads lets idle
+     * threads steal work from threads that got the more expensive rows.
+     */
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    /**
+     * The number of hand-overs timed by handOverNanos().
+     */
+    private static final int HAND_OVER_SAMPLES = 64;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(ParallelismBudget.total());
+
+    /**
+     * Filters the rows from start (inclusive) to end (exclusive) and
+     * returns once all of them have been filtered.
+     * The number of blocks is taken from the ParallelismBudget.
+     * @param start The first row to filter
+     * @param end The row to stop filtering at
+     * @param width The width of a row in pixels
+     * @param factory Creates the worker for each block of rows
+     * @return The number of threads the rows were shared between
+     */
+    public static int run(int start, int end, int width, WorkerFactory factory) {
+        return run(start, end, width, ParallelismBudget.threadsPerImage(), factory);
+    }
+
+    /**
+     * Filters the rows from start (inclusive) to end (exclusive) and
+     * returns once all of them have been filtered.
+     * @param start The first row to filter
+     * @param end The row to stop filtering at
+     * @param width The width of a row in pixels
+     * @param threads The number of threads the rows may be shared between
+     * @param factory Creates the worker for each block of rows
+     * @return The number of threads the rows were shared between
+     */
+    public static int run(int start, int end, int width, int threads, WorkerFactory factory) {
+        return run(start, end, width, threads, 1, factory);
+    }
+
+    /**
+     * Filters the rows from start (inclusive) to end (exclusive) in blocks of a multiple
+     * of rowStep rows (see Kernel.getBlockRows()), and returns once all of them have been filtered.
+     * @param start The first row to filter
+     * @param end The row to stop filtering at
+     * @param width The width of a row in pixels
+     * @param threads The number of threads the rows may be shared between
+     * @param rowStep The number of rows the blocks are a multiple of (but for the last one)
+     * @param factory Creates the worker for each block of rows
+     * @return The number of threads the rows were shared between
+     */
+    public static int run(int start, int end, int width, int threads, int rowStep, WorkerFactory factory) {
+        int rows = end - start;
+        if (rows <= 0) {
+            return 0;
+        }
+
+        if (threads <= 1 || (long) rows * width < MIN_PIXELS_PER_BLOCK) {
+            // Not split, or not worth handing over: filter on the calling thread
+            factory.create(start, end).run();
+            return 1;
+        }
+
+        int minRows = Math.max(1, MIN_PIXELS_PER_BLOCK / Math.max(1, width));
+        int blocks = threads * BLOCKS_PER_THREAD;
+        int rowsPerBlock = Math.max(minRows, (rows + blocks - 1) / blocks);
+        int step = Math.max(1, rowStep);
+        rowsPerBlock = (rowsPerBlock + step - 1) / step * step;
+        int lanes = Math.min(threads, (rows + rowsPerBlock - 1) / rowsPerBlock);
+        int helpers = ParallelismBudget.tryAcquireThreads(lanes - 1);
+        if (helpers == 0) {
+            // No thread free to help
+            factory.create(start, end).run();
+            return 1;
+        }
+
+        SliceTimes times = new SliceTimes();
+        AtomicInteger next = new AtomicInteger(start);
+        RowLane[] helping = new RowLane[helpers];
+        try {
+            for (int i = 0; i < helpers; i++) {
+                helping[i] = new RowLane(next, end, rowsPerBlock, factory, times);
+                POOL.execute(helping[i]);
+            }
+            new RowLane(next, end, rowsPerBlock, factory, times).compute();
+        } finally {
+            // The helpers stop filtering before their threads are given back to the budget
+            for (RowLane lane : helping) {
+                if (lane != null) {
+                    lane.quietlyJoin();
+                }
+            }
+            ParallelismBudget.releaseThreads(helpers);
+        }
+        for (RowLane lane : helping) {
+            // Throws what a helper threw
+            lane.join();
+        }
+        Metrics.slicesFiltered(times.slices.sum(), times.total.sum(), times.max.get());
+        return 1 + helpers;
+    }
+
+    /**
+     * Measures how long handing a block to a thread of the pool and waiting for it
+     * to be done takes, without any filtering: the overhead of splitting an image.
+     * @return The median time of a hand-over in nanoseconds
+     */
+    static long handOverNanos() {
+        long[] nanos = new long[HAND_OVER_SAMPLES];
+        for (int i = 0; i < nanos.length; i++) {
+            long startNanos = System.nanoTime();
+            POOL.submit(() -> { }).join();
+            nanos[i] = System.nanoTime() - startNanos;
+        }
+        Arrays.sort(nanos);
+        return nanos[nanos.length / 2];
+    }
+
+    /**
+     * A thread filtering the blocks of rows of an image, one after the other,
+     * until none is left.
+     */
+    private static class RowLane extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // the first row of the next block to filter
+        private final AtomicInteger next;
+        private final int end;
+        private final int rowsPerBlock;
+        private final WorkerFactory factory;
+        private final SliceTimes times;
+
+        RowLane(AtomicInteger next, int end, int rowsPerBlock, WorkerFactory factory, SliceTimes times) {
+            this.next = next;
+            this.end = end;
+            this.rowsPerBlock = rowsPerBlock;
+            this.factory = factory;
+            this.times = times;
+        }
+
+        @Override
+        protected void compute() {
+            int start;
+            while ((start = next.getAndAdd(rowsPerBlock)) < end) {
+                long startNanos = System.nanoTime();
+                factory.create(start, Math.min(end, start + rowsPerBlock)).run();
+                times.add(System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    /**
+     * The time the blocks of one image took, to measure how evenly they were shared.
+     */
+    private static class SliceTimes {
+        private final LongAdder slices = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void add(long nanos) {
+            slices.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+    }
+}
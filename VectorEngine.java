@@ -0,0 +1,41 @@
+package com.kcl.osc.imageprocessor;
+
+/**
+ * Tells whether the SIMD workers (VectorFilterWorker and VectorGreyscaleWorker),
+ * built on the incubating jdk.incubator.vector module, can be used.
+ *
+ * The module is only present when the JVM is started with
+ * --add-modules jdk.incubator.vector; without it the scalar workers are used.
+ * The SIMD workers can also be turned off with -Dimageprocessor.vector=false.
+ */
+public class VectorEngine {
+
+    private static final boolean AVAILABLE = detect();
+
+    private VectorEngine() { }
+
+    /**
+     * @return true if the SIMD workers can be used
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    private static boolean detect() {
+        if (!Boolean.parseBoolean(System.getProperty("imageprocessor.vector", "true"))) {
+            return false;
+        }
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
+        }
+        try {
+            // Loads and links the workers now, so a missing or
+            // incompatible module is found before any image is filtered
+            Class.forName(VectorFilterWorker.class.getName());
+            Class.forName(VectorGreyscaleWorker.class.getName());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
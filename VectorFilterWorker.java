@@ -0,0 +1,159 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.Arrays;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Applies the given filter with SIMD instructions, filtering
+ * as many pixels at once as the CPU has float lanes.
+ * Only used when VectorEngine.isAvailable().
+ */
+public class VectorFilterWorker extends Worker {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    // as many int lanes as float lanes
+    private static final VectorSpecies<Integer> INT_SPECIES = VectorSpecies.of(int.class, SPECIES.vectorShape());
+
+    private float[][] filter;
+
+    public VectorFilterWorker(PixelBuffer baseImage, int start, int end, PixelBuffer result, float[][] filter) {
+        super(baseImage, start, end, result);
+        this.filter = filter;
+    }
+
+    /**
+     * Applies the filter to a part of an image,
+     * from the startRow (inclusive) to the endRow (exclusive).
+     * The base image is expected to have a border of the kernel's radius,
+     * and the rows are rows of the bordered image.
+     * The rows needed are first unpacked into one float array per channel,
+     * so that consecutive pixels of a channel can be loaded into one vector.
+     * Modifies the filteredImage.
+     */
+    @Override
+    public void run() {
+        int[] in = image.getPixels();
+        int[] out = filteredImage.getPixels();
+        int inWidth = image.getWidth();
+        // the number of pixels filtered in a row
+        int outWidth = inWidth - 2 * (filter[0].length / 2);
+        int radiusY = filter.length / 2;
+
+        // Unpacks the rows of the slice and radiusY rows around it
+        int firstRow = startRow - radiusY;
+        int rows = endRow - startRow + filter.length - 1;
+        int pixels = rows * inWidth;
+        float[] red = PixelBufferPool.borrowFloats(pixels);
+        float[] green = PixelBufferPool.borrowFloats(pixels);
+        float[] blue = PixelBufferPool.borrowFloats(pixels);
+
+        // The sums of one result row. The taps are the outer loop and the pixels the inner
+        // loop, so the vectors never have to live across loop iterations (which C2 cannot
+        // keep in registers) and each step is a load, a fused multiply-add and a store.
+        float[] sumRed = PixelBufferPool.borrowFloats(outWidth);
+        float[] sumGreen = PixelBufferPool.borrowFloats(outWidth);
+        float[] sumBlue = PixelBufferPool.borrowFloats(outWidth);
+        try {
+            int offset = firstRow * inWidth;
+            for (int p = 0; p < pixels; p++) {
+                int pixel = in[offset + p];
+                red[p] = PixelBuffer.red(pixel);
+                green[p] = PixelBuffer.green(pixel);
+                blue[p] = PixelBuffer.blue(pixel);
+            }
+
+            int vectorEnd = SPECIES.loopBound(outWidth);
+            for (int i = startRow; i < endRow; i++) {
+                int rowOffset = (i - startRow) * inWidth;
+
+                Arrays.fill(sumRed, 0, outWidth, 0f);
+                Arrays.fill(sumGreen, 0, outWidth, 0f);
+                Arrays.fill(sumBlue, 0, outWidth, 0f);
+
+                for (int k = 0; k < filter.length; k++) {
+                    float[] weights = filter[k];
+                    for (int l = 0; l < weights.length; l++) {
+                        int index = rowOffset + k * inWidth + l;
+                        addWeighted(red, index, weights[l], sumRed, vectorEnd, outWidth);
+                        addWeighted(green, index, weights[l], sumGreen, vectorEnd, outWidth);
+                        addWeighted(blue, index, weights[l], sumBlue, vectorEnd, outWidth);
+                    }
+                }
+
+                pack(sumRed, sumGreen, sumBlue, out, resultOffset + (i - radiusY) * resultStride, vectorEnd, outWidth);
+            }
+        } finally {
+            PixelBufferPool.release(red);
+            PixelBufferPool.release(green);
+            PixelBufferPool.release(blue);
+            PixelBufferPool.release(sumRed);
+            PixelBufferPool.release(sumGreen);
+            PixelBufferPool.release(sumBlue);
+        }
+    }
+
+    /**
+     * Adds weight * channel[index + j] to sum[j] for every pixel j of the row.
+     */
+    private static void addWeighted(float[] channel, int index, float weight, float[] sum, int vectorEnd, int width) {
+        FloatVector weights = FloatVector.broadcast(SPECIES, weight);
+        int j = 0;
+        for (; j < vectorEnd; j += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, channel, index + j)
+                    .fma(weights, FloatVector.fromArray(SPECIES, sum, j))
+                    .intoArray(sum, j);
+        }
+        // The pixels left at the end of the row
+        for (; j < width; j++) {
+            sum[j] += channel[index + j] * weight;
+        }
+    }
+
+    /**
+     * Clamps, rounds and packs the sums of a row into opaque ARGB pixels, as clampRGB() and
+     * PixelBuffer.pack() do. One channel is packed at a time: with the three in one loop,
+     * C2 stops inlining before the last one, whose vectors are then allocated.
+     */
+    private static void pack(float[] red, float[] green, float[] blue, int[] out, int outOffset, int vectorEnd, int width) {
+        packChannel(red, 16, true, out, outOffset, vectorEnd);
+        packChannel(green, 8, false, out, outOffset, vectorEnd);
+        packChannel(blue, 0, false, out, outOffset, vectorEnd);
+        for (int j = vectorEnd; j < width; j++) {
+            out[outOffset + j] = PixelBuffer.pack(clampRGB(red[j]), clampRGB(green[j]), clampRGB(blue[j]));
+        }
+    }
+
+    /**
+     * Packs a channel into the pixels of a row, up to vectorEnd.
+     * @param shift The position of the channel in a packed pixel
+     * @param first true for the first channel, which sets the pixels (opaque), false to add to them
+     */
+    private static void packChannel(float[] sum, int shift, boolean first, int[] out, int outOffset, int vectorEnd) {
+        for (int j = 0; j < vectorEnd; j += SPECIES.length()) {
+            IntVector channel = toChannel(FloatVector.fromArray(SPECIES, sum, j)).lanewise(VectorOperators.LSHL, shift);
+            IntVector pixels = first ? IntVector.broadcast(INT_SPECIES, 0xFF000000)
+                    : IntVector.fromArray(INT_SPECIES, out, outOffset + j);
+            pixels.or(channel).intoArray(out, outOffset + j);
+        }
+    }
+
+    /**
+     * The vector version of clampRGB: clamps to [0,255] and rounds to the nearest integer, halves up.
+     * A float-to-int conversion would allocate (not every JDK compiles it to SIMD instructions),
+     * so the sum is rounded from its bits instead: its mantissa m, with the implicit 1, has s
+     * fraction bits, and (m + 2^(s-1)) >> s, computed as ((m >> (s-1)) + 1) >> 1, is exact.
+     */
+    private static IntVector toChannel(FloatVector sum) {
+        IntVector bits = sum.max(0f).min(255f).reinterpretAsInts();
+        // 23 less the unbiased exponent, at most 32 (then 0 is left)
+        IntVector fractionBits = bits.lanewise(VectorOperators.LSHR, 23).and(0xFF).neg().add(150).min(32);
+        return bits.and(0x7FFFFF).or(0x800000)
+                .lanewise(VectorOperators.LSHR, fractionBits.sub(1))
+                .add(1)
+                .lanewise(VectorOperators.LSHR, 1);
+    }
+}
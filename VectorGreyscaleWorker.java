@@ -0,0 +1,60 @@
+package com.kcl.osc.imageprocessor;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Applies the greyscale filter with SIMD instructions.
+ * Only used when VectorEngine.isAvailable().
+ */
+public class VectorGreyscaleWorker extends Worker {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    // x / 3 == (x * THIRD) >>> THIRD_SHIFT for 0 <= x <= 3 * 255 + 1
+    private static final int THIRD_SHIFT = 17;
+    private static final int THIRD = (1 << THIRD_SHIFT) / 3 + 1;
+
+    public VectorGreyscaleWorker(PixelBuffer baseImage, int start, int end, PixelBuffer result) {
+        super(baseImage, start, end, result);
+    }
+
+    /**
+     * Applies the greyscale filter to a part of an image,
+     * from the startRow (inclusive) to the endRow (exclusive).
+     * The mean of the channels is computed with ints only: (sum + 1) / 3 is the mean rounded
+     * to the nearest integer as GreyscaleWorker rounds it, and for sums up to 3 * 255 the
+     * division by 3 is a multiplication by ceil(2^17 / 3) and a shift.
+     * Modifies the filteredImage.
+     */
+    @Override
+    public void run() {
+        int[] in = image.getPixels();
+        int[] out = filteredImage.getPixels();
+        int width = image.getWidth();
+        int start = startRow * width;
+        int end = endRow * width;
+        int vectorEnd = start + SPECIES.loopBound(end - start);
+
+        int i = start;
+        for (; i < vectorEnd; i += SPECIES.length()) {
+            IntVector pixels = IntVector.fromArray(SPECIES, in, i);
+            IntVector sum = pixels.lanewise(VectorOperators.LSHR, 16).and(0xFF)
+                    .add(pixels.lanewise(VectorOperators.LSHR, 8).and(0xFF))
+                    .add(pixels.and(0xFF));
+            IntVector grey = sum.add(1).mul(THIRD).lanewise(VectorOperators.LSHR, THIRD_SHIFT);
+            grey.lanewise(VectorOperators.LSHL, 16)
+                    .or(grey.lanewise(VectorOperators.LSHL, 8))
+                    .or(grey)
+                    .or(0xFF000000)
+                    .intoArray(out, i);
+        }
+        // The pixels left at the end
+        for (; i < end; i++) {
+            int pixel = in[i];
+            int grey = (PixelBuffer.red(pixel) + PixelBuffer.green(pixel) + PixelBuffer.blue(pixel) + 1) / 3;
+            out[i] = PixelBuffer.pack(grey, grey, grey);
+        }
+    }
+}
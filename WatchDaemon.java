@@ -0,0 +1,257 @@
+package com.kcl.osc.imageprocessor;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Watches a folder and its sub-folders, and filters every image created or modified
+ * in them, for as long as the process runs. Staying up keeps the JIT-compiled workers
+ * and the threads warm, so an image is filtered shortly after it arrives.
+ *
+ * Images being written are not picked up half-written: an image is only filtered once
+ * no event has been seen for it and its size has not changed for the debounce delay
+ * (imageprocessor.watch.debounce milliseconds, 50 by default).
+ * Images already in the folder when the daemon starts are left alone.
+ * An image is remembered until it is deleted, so that it is filtered again only if modified.
+ * The outputs must be saved outside the watched folder.
+ */
+public class WatchDaemon implements Runnable {
+
+    private static final long DEFAULT_DEBOUNCE_MILLIS = 50;
+
+    private final Path folder;
+    private final TaskPool threadPool;
+    private final Function<File, Runnable> processorFactory;
+    private final long debounceNanos;
+    private final WatchService watcher;
+
+    // the folder each registered key watches, and the folders watched
+    private final Map<WatchKey, Path> folders;
+    private final Set<Path> watched;
+
+    // the images with recent events, waiting for their writes to end
+    private final Map<Path, Pending> pending;
+
+    // the modification time of each image when it was last submitted, until the image is deleted
+    private final Map<Path, FileTime> submitted;
+
+    // images last modified before this were already there when the daemon started
+    private final FileTime startTime;
+
+    /**
+     * Constructor, with the debounce delay taken from the system properties.
+     * @param folder The folder to watch
+     * @param threadPool The thread pool filtering the images, already started
+     * @param processorFactory Creates the processor that decodes, filters and saves an image,
+     * or returns null if the file cannot be decoded; called on a thread of the pool
+     * @throws IOException if the folder cannot be watched
+     */
+    public WatchDaemon(Path folder, TaskPool threadPool, Function<File, Runnable> processorFactory) throws IOException {
+        this(folder, threadPool, processorFactory,
+                Long.getLong("imageprocessor.watch.debounce", DEFAULT_DEBOUNCE_MILLIS), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor.
+     * @param folder The folder to watch
+     * @param threadPool The thread pool filtering the images, already started
+     * @param processorFactory Creates the processor that decodes, filters and saves an image,
+     * or returns null if the file cannot be decoded; called on a thread of the pool
+     * @param debounce How long an image must stay unchanged before it is filtered
+     * @param unit The unit of the debounce delay
+     * @throws IOException if the folder cannot be watched
+     */
+    public WatchDaemon(Path folder, TaskPool threadPool, Function<File, Runnable> processorFactory,
+            long debounce, TimeUnit unit) throws IOException {
+        this.folder = folder;
+        this.threadPool = threadPool;
+        this.processorFactory = processorFactory;
+        this.debounceNanos = unit.toNanos(debounce);
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.folders = new HashMap<>();
+        this.watched = new HashSet<>();
+        this.pending = new HashMap<>();
+        this.submitted = new HashMap<>();
+        this.startTime = FileTime.fromMillis(System.currentTimeMillis());
+        registerTree(folder, false);
+    }
+
+    /**
+     * Watches the folder until the daemon is closed or the thread interrupted.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                // Wakes up when the oldest pending image may have settled
+                WatchKey key = pending.isEmpty() ? watcher.take()
+                        : watcher.poll(debounceNanos, TimeUnit.NANOSECONDS);
+                while (key != null) {
+                    handleEvents(key);
+                    key = watcher.poll();
+                }
+                submitSettled();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Stops watching: run() returns.
+     */
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path dir = folders.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || dir == null) {
+                // Events were lost: forget the images deleted since, and look for changed images in the whole tree
+                submitted.keySet().removeIf(path -> !Files.exists(path));
+                registerTree(folder, true);
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_DELETE) {
+                pending.remove(path);
+                submitted.remove(path);
+            } else if (Files.isDirectory(path)) {
+                if (event.kind() == ENTRY_CREATE) {
+                    // Images may have been written into it before it was registered
+                    registerTree(path, true);
+                }
+            } else {
+                touch(path);
+            }
+        }
+        if (!key.reset() && dir != null) {
+            // The folder was deleted: forget its images
+            folders.remove(key);
+            watched.remove(dir);
+            pending.keySet().removeIf(path -> path.startsWith(dir));
+            submitted.keySet().removeIf(path -> path.startsWith(dir));
+        }
+    }
+
+    /**
+     * Watches a folder and its sub-folders.
+     * @param dir The folder
+     * @param scan true to also look for images created or modified since the daemon started
+     */
+    private void registerTree(Path dir, boolean scan) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Iterator<Path> it = paths.iterator(); it.hasNext(); ) {
+                Path path = it.next();
+                if (Files.isDirectory(path)) {
+                    if (!watched.contains(path)) {
+                        folders.put(path.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), path);
+                        watched.add(path);
+                    }
+                } else if (scan && Files.getLastModifiedTime(path).compareTo(startTime) >= 0) {
+                    touch(path);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not watch " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Notes that an image is being written, restarting its debounce delay.
+     */
+    private void touch(Path path) {
+        String name = path.getFileName().toString();
+        if (name.startsWith(".") || name.endsWith("_filtered.png")) {
+            return;
+        }
+        pending.put(path, new Pending(System.nanoTime(), size(path)));
+    }
+
+    /**
+     * Submits the images that have stayed unchanged for the debounce delay.
+     */
+    private void submitSettled() throws InterruptedException {
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Pending> entry = it.next();
+            Path path = entry.getKey();
+            Pending state = entry.getValue();
+            if (now - state.lastEventNanos < debounceNanos) {
+                continue;
+            }
+            long size = size(path);
+            if (size != state.size) {
+                // Still being written, without events (e.g. on some network file systems)
+                entry.setValue(new Pending(now, size));
+                continue;
+            }
+            it.remove();
+
+            FileTime modified;
+            try {
+                modified = Files.getLastModifiedTime(path);
+            } catch (IOException e) {
+                // deleted since
+                continue;
+            }
+            if (size <= 0 || modified.equals(submitted.get(path))) {
+                continue;
+            }
+            submitted.put(path, modified);
+
+            // The image is only decoded on the pool's thread, so its compressed size,
+            // which grows with its number of pixels, stands for its cost
+            File file = path.toFile();
+            threadPool.submit(() -> {
+                Runnable processor = processorFactory.apply(file);
+                if (processor != null) {
+                    processor.run();
+                }
+            }, size, 0);
+        }
+    }
+
+    private static long size(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * An image with recent events.
+     */
+    private static class Pending {
+        private final long lastEventNanos;
+        private final long size;
+
+        Pending(long lastEventNanos, long size) {
+            this.lastEventNanos = lastEventNanos;
+            this.size = size;
+        }
+    }
+}
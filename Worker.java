@@ -1,20 +1,23 @@
 package com.kcl.osc.imageprocessor;
 
-import javafx.scene.paint.Color;
-
 /**
  * A Worker class that will deal with the filtering of
  * a part of the image (or its whole depending on parameters).
  */
 public abstract class Worker implements Runnable{
-    protected Color[][] image;
-    protected Color[][] filteredImage;
+    protected PixelBuffer image;
+    protected PixelBuffer filteredImage;
 
     // Inclusive
     protected int startRow;
     // Exclusive
     protected int endRow;
 
+    // where the kernel workers write the filtered pixel of the first row and column
+    // of the image (inside its border) in filteredImage, and the distance between two rows
+    protected int resultOffset;
+    protected int resultStride;
+
     /**
      * Constructor.
      * @param baseImage The original image
@@ -22,26 +25,43 @@ public abstract class Worker implements Runnable{
      * @param end The row of the image to end filtering (exclusive)
      * @param result The result image
      */
-    public Worker(Color[][] baseImage, int start, int end, Color[][] result) {
+    public Worker(PixelBuffer baseImage, int start, int end, PixelBuffer result) {
         image = baseImage;
         startRow = start;
         endRow = end;
         filteredImage = result;
+        resultOffset = 0;
+        resultStride = result.getWidth();
+    }
+
+    /**
+     * Makes a kernel worker write into a part of the result image rather than all of it:
+     * the pixel filtered at row radiusY and column radiusX of the base image goes at index
+     * offset of the result, and consecutive rows are stride pixels apart.
+     * By default the result is the base image without its border.
+     * @param offset The index of the first filtered pixel in the result
+     * @param stride The distance between two rows of the result
+     * @return This worker
+     */
+    public Worker setResultPosition(int offset, int stride) {
+        resultOffset = offset;
+        resultStride = stride;
+        return this;
     }
 
     /**
-     * This method ensures that the computations on color values have not
-     * strayed outside of the range [0,1].
+     * This method ensures that the computations on channel values have not
+     * strayed outside of the range [0,255], and rounds them to the nearest integer.
      * @param RGBValue the value to clamp.
      * @return The clamped value.
      */
-    protected double clampRGB(double RGBValue) {
+    protected static int clampRGB(double RGBValue) {
         if (RGBValue < 0.0) {
-            return 0.0;
-        } else if (RGBValue > 1.0) {
-            return 1.0;
+            return 0;
+        } else if (RGBValue > 255.0) {
+            return 255;
         } else {
-            return RGBValue;
+            return (int) (RGBValue + 0.5);
         }
     }
 
@@ -0,0 +1,30 @@
+package com.kcl.osc.imageprocessor;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, which adds the allocation rate
+ * (gc.alloc.rate.norm, in bytes per operation) to the results.
+ * The arguments are JMH's usual command line options, e.g. a regular expression
+ * to run only some of the benchmarks, or -p size=1920x1080 to run only one size.
+ *
+ * The benchmarks are compiled together with the sources of the application
+ * (they are in the same package to reach the extraction and saving methods),
+ * with jmh-core, jmh-generator-annprocess and JavaFX on the class path.
+ * Each benchmark reports its throughput in operations/us and, as the
+ * megapixelsPerSecond counter, the number of megapixels processed per second.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,48 @@
+package com.kcl.osc.imageprocessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures saveNewImage: the PNG encoding of a filtered image and its write to disk.
+ * The file is overwritten by every invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class EncodeBenchmark {
+
+    private File output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        output = File.createTempFile("encode-benchmark", ".png");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        output.delete();
+    }
+
+    @Benchmark
+    public void saveNewImage(SyntheticImages images, PixelCounter counter) {
+        counter.add(images);
+        ImageProcessorMT.saveNewImage(images.pixels, output.getPath());
+    }
+}
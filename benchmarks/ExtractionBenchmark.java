@@ -0,0 +1,52 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures getting the pixels out of an image before filtering:
+ * from a JavaFX image (getPixelData) and from a BufferedImage for the headless engine.
+ * No border is added: the workers handle the edges of the image in place (see BorderWorker).
+ * The buffers are released to the PixelBufferPool, as the processors do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ExtractionBenchmark {
+
+    private ImageProcessorMT processor;
+
+    @Setup(Level.Trial)
+    public void setUp(SyntheticImages images) {
+        processor = new ImageProcessorMT(images.image, "IDENTITY", false, null);
+    }
+
+    @Benchmark
+    public PixelBuffer getPixelData(SyntheticImages images, PixelCounter counter) {
+        counter.add(images);
+        PixelBuffer pixels = processor.getPixelData();
+        PixelBufferPool.release(pixels);
+        return pixels;
+    }
+
+    @Benchmark
+    public PixelBuffer readBufferedImage(SyntheticImages images, PixelCounter counter) {
+        counter.add(images);
+        PixelBuffer pixels = new PixelBuffer(images.width, images.height);
+        PixelBuffer.readPixels(images.bufferedImage, pixels.getPixels(), 0, pixels.getWidth());
+        return pixels;
+    }
+}
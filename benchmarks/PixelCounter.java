@@ -0,0 +1,32 @@
+package com.kcl.osc.imageprocessor;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the pixels processed by a benchmark. JMH reports the counter as a rate,
+ * so with the benchmarks' output unit (microseconds) it reads as pixels/us,
+ * which is megapixels/s.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class PixelCounter {
+
+    public long megapixelsPerSecond;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        megapixelsPerSecond = 0;
+    }
+
+    /**
+     * Counts the pixels of one image.
+     * @param images The image processed
+     */
+    public void add(SyntheticImages images) {
+        megapixelsPerSecond += images.pixelCount();
+    }
+}
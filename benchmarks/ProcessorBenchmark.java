@@ -0,0 +1,42 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a whole image processor, from the extraction of the pixels to the
+ * filtered pixels, without saving: ImageProcessorST on the calling thread
+ * against ImageProcessorMT on all the threads of the budget.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ProcessorBenchmark {
+
+    @Param({"BLUR", "EDGE", "GREY"})
+    public String filter;
+
+    @Benchmark
+    public void singleThreaded(SyntheticImages images, PixelCounter counter) {
+        counter.add(images);
+        new ImageProcessorST(images.image, filter, false, null).run();
+    }
+
+    @Benchmark
+    public void multiThreaded(SyntheticImages images, PixelCounter counter) {
+        counter.add(images);
+        new ImageProcessorMT(images.image, filter, false, null).run();
+    }
+}
@@ -0,0 +1,82 @@
+package com.kcl.osc.imageprocessor;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The images the benchmarks run on, generated rather than read from img
+ * so that every size and aspect ratio can be measured on any machine.
+ * The pixels are a gradient with noise on top, so that PNG encoding
+ * is neither trivial nor pure noise.
+ */
+@State(Scope.Benchmark)
+public class SyntheticImages {
+
+    /**
+     * Width x height: a small, a full HD and a large image,
+     * and two strips (one wide, one tall) of about a megapixel each.
+     */
+    @Param({"640x480", "1920x1080", "4096x4096", "8192x128", "128x8192"})
+    public String size;
+
+    public int width;
+    public int height;
+
+    // the same pixels as a PixelBuffer, a JavaFX image and a BufferedImage
+    public PixelBuffer pixels;
+    public Image image;
+    public BufferedImage bufferedImage;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        width = Integer.parseInt(dimensions[0]);
+        height = Integer.parseInt(dimensions[1]);
+
+        pixels = new PixelBuffer(width, height);
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = (x * 255 / width + random.nextInt(32)) & 0xFF;
+                int green = (y * 255 / height + random.nextInt(32)) & 0xFF;
+                int blue = random.nextInt(256);
+                pixels.set(x, y, PixelBuffer.pack(red, green, blue));
+            }
+        }
+
+        startJavaFX();
+        WritableImage fxImage = new WritableImage(width, height);
+        fxImage.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(),
+                pixels.getPixels(), 0, width);
+        image = fxImage;
+
+        bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        bufferedImage.setRGB(0, 0, width, height, pixels.getPixels(), 0, width);
+    }
+
+    /**
+     * The size of the image in pixels.
+     */
+    public long pixelCount() {
+        return (long) width * height;
+    }
+
+    /**
+     * JavaFX images can only be created once the toolkit is running.
+     */
+    private static void startJavaFX() {
+        try {
+            Platform.startup(() -> { });
+        } catch (IllegalStateException e) {
+            // already started by another benchmark in this JVM
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.kcl.osc.imageprocessor;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the workers alone, on one thread over the whole image,
+ * without the extraction of the pixels or the scheduling of the blocks.
+ * filterWorker always runs the generic FilterWorker; kernelWorker runs
+ * the worker the processors would pick for the kernel. Likewise, greyscaleWorker
+ * always runs the scalar GreyscaleWorker and pickedGreyscaleWorker the one picked
+ * by GreyscaleWorker.create() (the SIMD one when the vector module is present).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class WorkerBenchmark {
+
+    @Param({"BLUR", "EDGE", "SHARPEN"})
+    public String filter;
+
+    private Kernel kernel;
+    private PixelBuffer bordered;
+    private PixelBuffer result;
+
+    @Setup(Level.Trial)
+    public void setUp(SyntheticImages images) {
+        kernel = Kernel.create(filter);
+        int radiusX = kernel.getRadiusX();
+        int radiusY = kernel.getRadiusY();
+        bordered = new PixelBuffer(images.width + 2 * radiusX, images.height + 2 * radiusY);
+        for (int y = 0; y < images.height; y++) {
+            System.arraycopy(images.pixels.getPixels(), y * images.width,
+                    bordered.getPixels(), (y + radiusY) * bordered.getWidth() + radiusX, images.width);
+        }
+        result = new PixelBuffer(images.width, images.height);
+    }
+
+    @Benchmark
+    public PixelBuffer filterWorker(SyntheticImages images, PixelCounter counter) {
+        counter.add(images);
+        int radiusY = kernel.getRadiusY();
+        new FilterWorker(bordered, radiusY, radiusY + images.height, result, kernel.getWeights()).run();
+        return result;
+    }
+
+    @Benchmark
+    public PixelBuffer kernelWorker(SyntheticImages images, PixelCounter counter) {
+        counter.add(images);
+        int radiusY = kernel.getRadiusY();
+        kernel.createWorker(bordered, radiusY, radiusY + images.height, result).run();
+        return result;
+    }
+
+    @Benchmark
+    public PixelBuffer greyscaleWorker(SyntheticImages images, PixelCounter counter) {
+        counter.add(images);
+        new GreyscaleWorker(images.pixels, 0, images.height, result).run();
+        return result;
+    }
+
+    @Benchmark
+    public PixelBuffer pickedGreyscaleWorker(SyntheticImages images, PixelCounter counter) {
+        counter.add(images);
+        GreyscaleWorker.create(images.pixels, 0, images.height, result).run();
+        return result;
+    }
+}